@@ -0,0 +1,131 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether the server is overloaded from how long jobs sit in the
+ * queue, CoDel style, rather than from how full the queue is.
+ *
+ * A burst that drains quickly is fine. Once every job dequeued for a whole
+ * interval has waited longer than the target, with work still queued behind
+ * it, the queue is a standing one and the server counts as overloaded until
+ * a job comes off the queue under the target or the queue empties. While
+ * overloaded:
+ *
+ *   - new jobs are only admitted while the queue holds no more than the pool
+ *     gets through in the target time, instead of up to its full capacity.
+ *     The queue is still let grow to where the scaling policy adds workers,
+ *     or shedding would keep the pool from growing out of the overload
+ *   - queued jobs that have already waited past the target are dropped when
+ *     they are dequeued rather than run late, at CoDel's rate: the first
+ *     straight away, then each after interval / sqrt(drops so far), so the
+ *     dropping gets harder the longer the overload lasts
+ *
+ * Either way the client is told to retry after a hint that grows with how
+ * long the overload has lasted.
+ */
+public class AdmissionController {
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final int minQueue;
+
+    // when the current run of slow dequeues will have lasted an interval; 0
+    // if the last job dequeued was under the target
+    private long firstAboveTime;
+    private volatile boolean overloaded;
+    private volatile long overloadedSince;
+    // drops since the overload began and when the next may happen
+    private int drops;
+    private long nextDrop;
+
+    /**
+     * @param targetMillis how long a job may wait in the queue
+     * @param intervalMillis how long waits must stay above the target before
+     *                       load is shed
+     * @param minQueue jobs always admitted, such as the scaling policy's
+     *                 high watermark
+     */
+    AdmissionController(int targetMillis, int intervalMillis, int minQueue) {
+        if (targetMillis < 1 || intervalMillis < targetMillis) {
+            throw new IllegalArgumentException("Need 0 < target <= interval");
+        }
+
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.minQueue = Math.max(1, minQueue);
+    }
+
+    /**
+     * Whether a new job should be queued
+     * @param queued jobs already in the queue
+     */
+    public boolean admit(int queued) {
+        if (!overloaded) {
+            return true;
+        }
+
+        double drainable = Metrics.completions.perSecond() * targetNanos / 1e9;
+        return queued < Math.max(minQueue, drainable);
+    }
+
+    /**
+     * Called as each job comes off the queue
+     * @param sojournNanos how long the job was queued
+     * @param remaining jobs still queued behind it
+     */
+    public synchronized void dequeued(long sojournNanos, long now, int remaining) {
+        if (sojournNanos < targetNanos || remaining == 0) {
+            firstAboveTime = 0;
+
+            if (overloaded) {
+                overloaded = false;
+                log("Queue wait back under target -- admitting everything");
+            }
+        } else if (firstAboveTime == 0) {
+            firstAboveTime = now + intervalNanos;
+        } else if (now >= firstAboveTime && !overloaded) {
+            overloadedSince = now;
+            drops = 0;
+            nextDrop = now;
+            overloaded = true;
+            log("Queue wait above target for an interval -- shedding load");
+        }
+    }
+
+    /**
+     * Whether a job that waited {sojournNanos} should be dropped instead of run
+     */
+    public boolean shouldDrop(long sojournNanos) {
+        if (!overloaded || sojournNanos <= targetNanos) {
+            return false;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!overloaded || now < nextDrop) {
+                return false;
+            }
+
+            drops++;
+            nextDrop = now + (long) (intervalNanos / Math.sqrt(drops));
+            return true;
+        }
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * How long a turned away client should wait before trying again: about
+     * as long as the overload has lasted, between one and ten intervals
+     */
+    public long retryAfterMillis() {
+        long overloadedFor = overloaded ? System.nanoTime() - overloadedSince : 0;
+        long wait = Math.max(intervalNanos, Math.min(overloadedFor, 10 * intervalNanos));
+
+        return TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    private static void log(String message) {
+        Log.info("AdmissionController", message);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Many arithmetic operations evaluated as one job. The operations are kept
+ * as parallel primitive arrays rather than one object each, so evaluating a
+ * batch is a couple of tight loops over arrays.
+ *
+ * The first loop computes ADD, SUB and MUL for every item with selects
+ * rather than a switch, which the JIT can compile without branching on the
+ * operation. Division and anything that failed are rare enough to be fixed
+ * up by a second loop. Each item gets its own status, so one divide by zero
+ * doesn't fail the rest of the batch.
+ */
+public final class Batch {
+    // most operations in one batch
+    public static final int MAX_SIZE = 1000;
+    // op for an item whose operands didn't parse (text batches only)
+    static final byte MALFORMED = -1;
+
+    private final byte[] ops;
+    private final long[] a;
+    private final long[] b;
+    private final long[] results;
+    private final byte[] statuses;
+    private int size;
+
+    Batch(int capacity) {
+        if (capacity < 1 || capacity > MAX_SIZE) {
+            throw new IllegalArgumentException("Batch capacity must be 1 to " + MAX_SIZE);
+        }
+
+        ops = new byte[capacity];
+        a = new long[capacity];
+        b = new long[capacity];
+        results = new long[capacity];
+        statuses = new byte[capacity];
+    }
+
+    /**
+     * Empties the batch so its arrays can be reused
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return false if the batch is full
+     */
+    public boolean add(byte op, long a, long b) {
+        if (size == ops.length) {
+            return false;
+        }
+
+        ops[size] = op;
+        this.a[size] = a;
+        this.b[size] = b;
+        size++;
+
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte getOp(int i) {
+        return ops[i];
+    }
+
+    public long getA(int i) {
+        return a[i];
+    }
+
+    public long getB(int i) {
+        return b[i];
+    }
+
+    public byte getStatus(int i) {
+        return statuses[i];
+    }
+
+    public long getResult(int i) {
+        return results[i];
+    }
+
+    /**
+     * Evaluates every item. Arithmetic wraps on overflow like {@link Command}.
+     */
+    public void evaluate() {
+        byte[] ops = this.ops;
+        long[] a = this.a;
+        long[] b = this.b;
+        long[] results = this.results;
+        byte[] statuses = this.statuses;
+        int size = this.size;
+
+        for (int i = 0; i < size; i++) {
+            long x = a[i];
+            long y = b[i];
+            byte op = ops[i];
+
+            long sum = x + y;
+            long difference = x - y;
+            long product = x * y;
+
+            results[i] = op == Command.ADD ? sum : op == Command.SUB ? difference : product;
+            statuses[i] = Command.OK;
+        }
+
+        for (int i = 0; i < size; i++) {
+            byte op = ops[i];
+
+            if (op == Command.DIV) {
+                if (b[i] == 0) {
+                    statuses[i] = Command.DIVIDE_BY_ZERO;
+                    results[i] = 0;
+                } else {
+                    results[i] = a[i] / b[i];
+                }
+            } else if (op < Command.ADD || op > Command.MUL) {
+                statuses[i] = op == MALFORMED ? Command.BAD_ARGUMENT : Command.UNKNOWN_COMMAND;
+                results[i] = 0;
+            }
+        }
+
+        Metrics.batchItems.add(size);
+    }
+}
@@ -0,0 +1,650 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micro-benchmarks for the server's hot paths, written in the style of a JMH
+ * suite (warmup iterations, measured iterations, mean and error per case) but
+ * with no dependencies so it builds with the rest of src/.
+ *
+ * Usage:
+ *   java Benchmarks [--filter=queue|pool|command|journal] [--format=json|csv] [--out=FILE]
+ *                   [--warmup=N] [--iterations=N]
+ *
+ * Results are written one per case, in JSON (default) or CSV, so runs from
+ * two builds can be diffed directly.
+ */
+public class Benchmarks {
+    // items each producer pushes through the queue per iteration
+    private static final int QUEUE_ITEMS = 200_000;
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int[] THREAD_COUNTS = {1, 2, 4};
+    private static final int COMMAND_OPS = 1_000_000;
+    // jobs each producer queues per iteration of the journal benchmark
+    private static final int JOURNAL_JOBS = 20_000;
+    private static final int[] JOURNAL_PRODUCERS = {1, 4, 16};
+    private static final int JOURNAL_CONSUMERS = 4;
+
+    private final List<Result> results = new ArrayList<>();
+    private final int warmup;
+    private final int iterations;
+
+    Benchmarks(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        Log.setLevel(Log.Level.ERROR);
+
+        String filter = options.getString("filter", "");
+        Benchmarks benchmarks = new Benchmarks(options.getInt("warmup", 2), options.getInt("iterations", 5));
+
+        if (filter.isEmpty() || filter.equals("queue")) {
+            benchmarks.queues();
+        }
+        if (filter.isEmpty() || filter.equals("pool")) {
+            benchmarks.pool();
+        }
+        if (filter.isEmpty() || filter.equals("command")) {
+            benchmarks.commands();
+        }
+        if (filter.isEmpty() || filter.equals("journal")) {
+            benchmarks.journal();
+        }
+
+        String format = options.getString("format", "json");
+        String out = options.getString("out", "");
+
+        if (out.isEmpty()) {
+            PrintWriter writer = new PrintWriter(System.out);
+            benchmarks.write(writer, format);
+            writer.flush();
+        } else {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+                benchmarks.write(writer, format);
+            }
+            System.out.println("Wrote " + benchmarks.results.size() + " results to " + out);
+        }
+    }
+
+    /**
+     * Runs {body} warmup + iterations times and records the measured scores
+     * @param body returns the score of one iteration
+     */
+    void measure(String name, Map<String, Object> params, String unit, Measurement body) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            body.run();
+        }
+
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = body.run();
+        }
+
+        Result result = new Result(name, params, unit, scores);
+        results.add(result);
+        System.err.println(result.describe());
+    }
+
+    interface Measurement {
+        double run() throws Exception;
+    }
+
+    /* ---------------------------------------------------------------- queues */
+
+    /**
+     * Minimal view of a queue so the server's queues and the JDK ones can be
+     * driven by the same producer/consumer loop
+     */
+    interface QueueUnderTest {
+        boolean offer(Integer item);
+
+        Integer take() throws InterruptedException;
+    }
+
+    void queues() throws Exception {
+        Map<String, Supplier<QueueUnderTest>> queues = new LinkedHashMap<>();
+
+        queues.put("SharedQueue", () -> shared(new SharedQueue<>(QUEUE_CAPACITY)));
+        queues.put("RingBufferQueue", () -> shared(new RingBufferQueue<>(QUEUE_CAPACITY)));
+        queues.put("WorkStealingQueue", () -> shared(new WorkStealingQueue<>(QUEUE_CAPACITY, 8, null)));
+        queues.put("ArrayBlockingQueue", () -> blocking(new ArrayBlockingQueue<>(QUEUE_CAPACITY)));
+        queues.put("LinkedBlockingQueue", () -> blocking(new LinkedBlockingQueue<>(QUEUE_CAPACITY)));
+        queues.put("ConcurrentLinkedQueue", () -> {
+            ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<>();
+            return new QueueUnderTest() {
+                public boolean offer(Integer item) {
+                    return queue.offer(item);
+                }
+
+                public Integer take() {
+                    Integer item;
+                    while ((item = queue.poll()) == null) {
+                        Thread.onSpinWait();
+                    }
+                    return item;
+                }
+            };
+        });
+
+        for (Map.Entry<String, Supplier<QueueUnderTest>> queue : queues.entrySet()) {
+            for (int producers : THREAD_COUNTS) {
+                for (int consumers : THREAD_COUNTS) {
+                    Map<String, Object> params = new LinkedHashMap<>();
+                    params.put("queue", queue.getKey());
+                    params.put("producers", producers);
+                    params.put("consumers", consumers);
+
+                    measure("queue.addTake", params, "ops/s",
+                            () -> queueThroughput(queue.getValue().get(), producers, consumers));
+                }
+            }
+        }
+    }
+
+    private static QueueUnderTest shared(SharedQueue<Integer> queue) {
+        return new QueueUnderTest() {
+            public boolean offer(Integer item) {
+                return queue.add(item);
+            }
+
+            public Integer take() throws InterruptedException {
+                return queue.take();
+            }
+        };
+    }
+
+    private static QueueUnderTest blocking(BlockingQueue<Integer> queue) {
+        return new QueueUnderTest() {
+            public boolean offer(Integer item) {
+                return queue.offer(item);
+            }
+
+            public Integer take() throws InterruptedException {
+                return queue.take();
+            }
+        };
+    }
+
+    /**
+     * Pushes QUEUE_ITEMS per producer through the queue and returns items per
+     * second. Consumers claim items from a shared count before each take,
+     * so together they take exactly what was produced, in whatever order
+     * the queue hands it out.
+     */
+    private static double queueThroughput(QueueUnderTest queue, int producers, int consumers) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers + consumers];
+        AtomicInteger unclaimed = new AtomicInteger(producers * QUEUE_ITEMS);
+
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < QUEUE_ITEMS; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+        }
+
+        for (int c = 0; c < consumers; c++) {
+            threads[producers + c] = new Thread(() -> {
+                awaitQuietly(start);
+                try {
+                    while (unclaimed.getAndDecrement() > 0) {
+                        queue.take();
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long elapsed = System.nanoTime() - began;
+
+        return (double) producers * QUEUE_ITEMS / (elapsed / 1e9);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /* ------------------------------------------------------------------ pool */
+
+    void pool() throws Exception {
+        for (int size : new int[] {10, 40}) {
+            Map<String, Object> params = new LinkedHashMap<>();
+            params.put("from", 5);
+            params.put("to", size);
+
+            SharedQueue<Job> queue = new SharedQueue<>(-1);
+            ThreadPool pool = new ThreadPool(50, queue);
+            pool.setNumActiveWorkers(5);
+
+            // keep a trickle of no-ops flowing so some workers are mid-job when retired
+            AtomicBoolean feeding = new AtomicBoolean(true);
+            Thread feeder = new Thread(() -> {
+                while (feeding.get()) {
+                    if (queue.size() < 100) {
+                        queue.add(new Job(NullResponder.INSTANCE, 0, "ADD,1,1"));
+                    }
+                    Thread.onSpinWait();
+                }
+            }, "Benchmark feeder");
+            feeder.setDaemon(true);
+            feeder.start();
+
+            measure("pool.grow", params, "ms", () -> {
+                long began = System.nanoTime();
+                pool.setNumActiveWorkers(size);
+                double elapsed = (System.nanoTime() - began) / 1e6;
+
+                pool.setNumActiveWorkers(5);
+                return elapsed;
+            });
+
+            measure("pool.shrink", params, "ms", () -> {
+                pool.setNumActiveWorkers(size);
+
+                long began = System.nanoTime();
+                pool.setNumActiveWorkers(5);
+                return (System.nanoTime() - began) / 1e6;
+            });
+
+            // until the retired workers have actually exited
+            measure("pool.retire", params, "ms", () -> {
+                pool.setNumActiveWorkers(size);
+
+                long began = System.nanoTime();
+                pool.setNumActiveWorkers(5);
+                pool.retired().get();
+                return (System.nanoTime() - began) / 1e6;
+            });
+
+            feeding.set(false);
+            pool.stop();
+        }
+    }
+
+    /* --------------------------------------------------------------- command */
+
+    void commands() throws Exception {
+        String[] commands = {"ADD,12,34", "SUB,1000,1", "MUL,123,456", "DIV,999,7", "ADD,x,1", "NOPE,1,2"};
+        Job[] jobs = new Job[commands.length];
+
+        for (int i = 0; i < commands.length; i++) {
+            jobs[i] = new Job(NullResponder.INSTANCE, 0, commands[i]);
+        }
+
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("mix", String.join(" ", commands));
+
+        measure("command.evaluate", params, "ops/s", () -> {
+            long began = System.nanoTime();
+            evaluateAll(jobs);
+
+            return COMMAND_OPS / ((System.nanoTime() - began) / 1e9);
+        });
+
+        // the same operations as one text BATCH, and as a Batch already decoded
+        StringBuilder batchCommand = new StringBuilder("BATCH");
+        Batch batch = new Batch(Batch.MAX_SIZE);
+        String[] ops = {"ADD", "SUB", "MUL", "DIV"};
+        byte[] codes = {Command.ADD, Command.SUB, Command.MUL, Command.DIV};
+
+        for (int i = 0; i < Batch.MAX_SIZE; i++) {
+            batchCommand.append(',').append(ops[i % 4]).append(',').append(i * 7 + 1).append(',').append(i % 13 + 1);
+            batch.add(codes[i % 4], i * 7 + 1, i % 13 + 1);
+        }
+
+        Map<String, Object> batchParams = new LinkedHashMap<>();
+        batchParams.put("size", Batch.MAX_SIZE);
+        Job batchJob = new Job(NullResponder.INSTANCE, 0, batchCommand.toString());
+
+        measure("command.batch.text", batchParams, "ops/s", () -> {
+            TextCodec codec = TextCodec.get();
+            int batches = COMMAND_OPS / Batch.MAX_SIZE;
+            long began = System.nanoTime();
+
+            for (int i = 0; i < batches; i++) {
+                batchJob.evaluate(codec);
+            }
+
+            return COMMAND_OPS / ((System.nanoTime() - began) / 1e9);
+        });
+
+        measure("command.batch.evaluate", batchParams, "ops/s", () -> {
+            int batches = COMMAND_OPS / Batch.MAX_SIZE;
+            long began = System.nanoTime();
+
+            for (int i = 0; i < batches; i++) {
+                batch.evaluate();
+            }
+
+            return COMMAND_OPS / ((System.nanoTime() - began) / 1e9);
+        });
+
+        // bytes allocated per command by parsing, evaluating and encoding the reply
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("Allocation counters not available -- skipping command.alloc");
+            return;
+        }
+
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+
+        measure("command.alloc", params, "B/op", () -> {
+            long before = allocations.getThreadAllocatedBytes(thread);
+            evaluateAll(jobs);
+
+            return (allocations.getThreadAllocatedBytes(thread) - before) / (double) COMMAND_OPS;
+        });
+    }
+
+    private static void evaluateAll(Job[] jobs) {
+        TextCodec codec = TextCodec.get();
+        long checksum = 0;
+
+        for (int i = 0; i < COMMAND_OPS; i++) {
+            checksum += jobs[i % jobs.length].evaluate(codec) + codec.length();
+        }
+
+        if (checksum == 42) {
+            // keeps the JIT from discarding the loop
+            System.err.println();
+        }
+    }
+
+    /* --------------------------------------------------------------- journal */
+
+    /**
+     * Jobs queued and run with no journal, a journal left to the page cache
+     * and a group committed one, so the cost of each shows up as the ratio
+     * to the first
+     */
+    void journal() throws Exception {
+        checkJournal();
+        Path directory = Files.createTempDirectory("journal-benchmark");
+
+        for (int producers : JOURNAL_PRODUCERS) {
+            for (String mode : new String[] {"memory", "journal-none", "journal-group"}) {
+                Map<String, Object> params = new LinkedHashMap<>();
+                params.put("mode", mode);
+                params.put("producers", producers);
+                params.put("consumers", JOURNAL_CONSUMERS);
+
+                measure("journal.enqueueRun", params, "ops/s", () -> {
+                    if (!mode.equals("memory")) {
+                        JobJournal journal = new JobJournal(directory, 16 * 1024 * 1024, mode.equals("journal-group"));
+                        journal.discardRecovered();
+                        Job.setJournal(journal);
+                    }
+
+                    try {
+                        return jobThroughput(producers);
+                    } finally {
+                        Job.setJournal(null);
+                    }
+                });
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Fills several small segments, completes all but the last few jobs and
+     * checks that the finished segments are deleted and that reopening the
+     * journal hands back exactly the unfinished jobs. Throws if not, since
+     * timing a journal that loses jobs or never frees its segments means
+     * nothing.
+     */
+    private static void checkJournal() throws IOException {
+        Path directory = Files.createTempDirectory("journal-check");
+        int jobs = 200;
+        int unfinished = 3;
+        String padding = ",nocache" + ",".repeat(1000);
+
+        JobJournal journal = new JobJournal(directory, 64 * 1024, false);
+        long[] ids = new long[jobs];
+        for (int i = 0; i < jobs; i++) {
+            ids[i] = journal.append(i, false, ("ADD," + i + ",0" + padding).getBytes(StandardCharsets.US_ASCII));
+        }
+        for (int i = 0; i < jobs - unfinished; i++) {
+            journal.complete(ids[i]);
+        }
+
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            files.forEach(segments::add);
+        }
+        if (segments.size() != 1 || journal.live() != unfinished) {
+            throw new IllegalStateException("Journal kept " + segments.size() + " segments and "
+                    + journal.live() + " live jobs; expected 1 and " + unfinished);
+        }
+
+        JobJournal reopened = new JobJournal(directory, 64 * 1024, false);
+        List<Integer> recovered = new ArrayList<>();
+        for (JobJournal.Recovered job : reopened.recovered()) {
+            recovered.add(job.toJob().getClient());
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = jobs - unfinished; i < jobs; i++) {
+            expected.add(i);
+        }
+        if (!recovered.equals(expected)) {
+            throw new IllegalStateException("Journal recovered clients " + recovered);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Queues JOURNAL_JOBS per producer and runs them on the consumers,
+     * returning jobs per second
+     */
+    private static double jobThroughput(int producers) throws Exception {
+        // room for every job, so none are turned away
+        SharedQueue<Job> queue = new RingBufferQueue<>(producers * JOURNAL_JOBS);
+        AtomicInteger remaining = new AtomicInteger(producers * JOURNAL_JOBS);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers + JOURNAL_CONSUMERS];
+
+        for (int p = 0; p < producers; p++) {
+            int client = p;
+            threads[p] = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < JOURNAL_JOBS; i++) {
+                    new Job(NullResponder.INSTANCE, client, "ADD,12,34").enqueue(queue);
+                }
+            });
+        }
+
+        for (int c = 0; c < JOURNAL_CONSUMERS; c++) {
+            threads[producers + c] = new Thread(() -> {
+                awaitQuietly(start);
+                try {
+                    while (remaining.getAndDecrement() > 0) {
+                        Job job = queue.take();
+                        if (job.markDequeued()) {
+                            job.run();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return (double) producers * JOURNAL_JOBS / ((System.nanoTime() - began) / 1e9);
+    }
+
+    /**
+     * Discards replies
+     */
+    static class NullResponder implements Responder {
+        static final NullResponder INSTANCE = new NullResponder();
+
+        @Override
+        public void reply(byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /* ---------------------------------------------------------------- output */
+
+    void write(PrintWriter out, String format) {
+        switch (format) {
+            case "json":
+                out.println("[");
+                for (int i = 0; i < results.size(); i++) {
+                    out.print("  " + results.get(i).toJson());
+                    out.println(i + 1 < results.size() ? "," : "");
+                }
+                out.println("]");
+                break;
+            case "csv":
+                out.println("benchmark,params,unit,score,error,samples");
+                for (Result result : results) {
+                    out.println(result.toCsv());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+    }
+
+    static class Result {
+        final String name;
+        final Map<String, Object> params;
+        final String unit;
+        final double[] scores;
+        final double mean;
+        // half-width of a ~99.9% confidence interval, like JMH's "Error" column
+        final double error;
+
+        Result(String name, Map<String, Object> params, String unit, double[] scores) {
+            this.name = name;
+            this.params = params;
+            this.unit = unit;
+            this.scores = scores;
+
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            mean = sum / scores.length;
+
+            double variance = 0;
+            for (double score : scores) {
+                variance += (score - mean) * (score - mean);
+            }
+            double stddev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+            error = 3.29 * stddev / Math.sqrt(scores.length);
+        }
+
+        String describe() {
+            return String.format(Locale.ROOT, "%-18s %-60s %14.2f +- %10.2f %s", name, params, mean, error, unit);
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"benchmark\":\"").append(name).append("\",\"params\":{");
+
+            int i = 0;
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                if (i++ > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(param.getKey()).append("\":");
+
+                if (param.getValue() instanceof Number) {
+                    json.append(param.getValue());
+                } else {
+                    json.append('"').append(param.getValue()).append('"');
+                }
+            }
+
+            json.append("},\"unit\":\"").append(unit).append('"')
+                    .append(String.format(Locale.ROOT, ",\"score\":%.3f,\"error\":%.3f,\"samples\":[", mean, error));
+
+            for (int j = 0; j < scores.length; j++) {
+                json.append(j > 0 ? "," : "").append(String.format(Locale.ROOT, "%.3f", scores[j]));
+            }
+
+            return json.append("]}").toString();
+        }
+
+        String toCsv() {
+            StringBuilder paramText = new StringBuilder();
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                if (paramText.length() > 0) {
+                    paramText.append(';');
+                }
+                paramText.append(param.getKey()).append('=').append(param.getValue());
+            }
+
+            return String.format(Locale.ROOT, "%s,\"%s\",%s,%.3f,%.3f,%d",
+                    name, paramText, unit, mean, error, scores.length);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size binary framing, for clients that want to skip the text
+ * protocol's parsing and formatting. A client opts in by sending {@link #MAGIC}
+ * as the very first byte of the connection; the server then sends no welcome
+ * message and reads request frames until the client closes its side.
+ *
+ * All integers are big-endian.
+ *
+ *   request (22 bytes): op (1), flags (1), request id (4), a (8), b (8)
+ *   reply   (13 bytes): status (1), request id (4), result (8)
+ *
+ * A request with the {@link Command#HAS_TIMEOUT} flag is followed by the
+ * milliseconds the client will wait for its reply (4 bytes); one still queued
+ * after that long is answered with TIMED_OUT instead of being run.
+ *
+ * Operations and statuses are the constants on {@link Command}. Replies come
+ * back in the order the requests were sent.
+ *
+ * A BATCH request has the number of operations (1 to {@link Batch#MAX_SIZE})
+ * in a and is followed (after any timeout) by that many items; its reply has the same count as
+ * its result and is followed by a result item for each, in order:
+ *
+ *   request item (17 bytes): op (1), a (8), b (8)
+ *   reply item    (9 bytes): status (1), result (8)
+ *
+ * A BATCH turned away as a whole (any status but OK) has no items.
+ */
+public final class BinaryProtocol {
+    // can't be the start of a text command, which is always ASCII
+    public static final byte MAGIC = (byte) 0xCA;
+    // how long the server waits for the magic byte before greeting a text client
+    public static final int NEGOTIATION_TIMEOUT = 100;
+
+    public static final int REQUEST_SIZE = 22;
+    public static final int REPLY_SIZE = 13;
+    public static final int ITEM_SIZE = 17;
+    public static final int ITEM_REPLY_SIZE = 9;
+    public static final int TIMEOUT_SIZE = 4;
+    // the largest request, a full BATCH with a timeout
+    public static final int MAX_REQUEST_SIZE = REQUEST_SIZE + TIMEOUT_SIZE + Batch.MAX_SIZE * ITEM_SIZE;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Reads one request frame starting at {offset}
+     */
+    public static Command decodeRequest(byte[] frame, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame, offset, REQUEST_SIZE);
+
+        return new Command(buffer.get(), buffer.get(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * How many bytes of items follow {header}: 0 for anything but a BATCH,
+     * or -1 for a BATCH with a count out of range
+     */
+    public static int itemsLength(Command header) {
+        if (header.getOp() != Command.BATCH) {
+            return 0;
+        }
+
+        long count = header.getA();
+        if (count < 1 || count > Batch.MAX_SIZE) {
+            return -1;
+        }
+
+        return (int) count * ITEM_SIZE;
+    }
+
+    /**
+     * How many bytes follow {header}: its timeout and its BATCH items, or -1
+     * for a BATCH with a count out of range
+     */
+    public static int bodyLength(Command header) {
+        int itemsLength = itemsLength(header);
+        if (itemsLength < 0) {
+            return -1;
+        }
+
+        return (header.hasTimeout() ? TIMEOUT_SIZE : 0) + itemsLength;
+    }
+
+    /**
+     * Reads the {@link #bodyLength} bytes following {header}, starting at
+     * {offset}, into it
+     */
+    public static void decodeBody(Command header, byte[] body, int offset) {
+        if (header.hasTimeout()) {
+            header.setTimeout(ByteBuffer.wrap(body, offset, TIMEOUT_SIZE).getInt());
+            offset += TIMEOUT_SIZE;
+        }
+
+        if (header.getOp() == Command.BATCH) {
+            header.setBatch(decodeBatch(body, offset, (int) header.getA()));
+        }
+    }
+
+    /**
+     * Reads the {count} items of a BATCH starting at {offset}
+     */
+    public static Batch decodeBatch(byte[] items, int offset, int count) {
+        ByteBuffer buffer = ByteBuffer.wrap(items, offset, count * ITEM_SIZE);
+        Batch batch = new Batch(count);
+
+        for (int i = 0; i < count; i++) {
+            batch.add(buffer.get(), buffer.getLong(), buffer.getLong());
+        }
+
+        return batch;
+    }
+
+    public static void encodeRequest(byte op, byte flags, int requestId, long a, long b, byte[] frame, int offset) {
+        ByteBuffer.wrap(frame, offset, REQUEST_SIZE).put(op).put(flags).putInt(requestId).putLong(a).putLong(b);
+    }
+
+    /**
+     * The request frame for {request}, with its timeout and items if it has
+     * them
+     */
+    public static byte[] encodeRequest(Command request) {
+        Batch batch = request.getBatch();
+        int count = batch == null ? 0 : batch.size();
+
+        byte[] frame = new byte[REQUEST_SIZE + (request.hasTimeout() ? TIMEOUT_SIZE : 0) + count * ITEM_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put(request.getOp()).put(request.getFlags()).putInt(request.getRequestId())
+                .putLong(request.getA()).putLong(request.getB());
+        if (request.hasTimeout()) {
+            buffer.putInt(request.getTimeout());
+        }
+
+        for (int i = 0; i < count; i++) {
+            buffer.put(batch.getOp(i)).putLong(batch.getA(i)).putLong(batch.getB(i));
+        }
+
+        return frame;
+    }
+
+    public static void encodeReply(byte status, int requestId, long result, byte[] frame, int offset) {
+        ByteBuffer.wrap(frame, offset, REPLY_SIZE).put(status).putInt(requestId).putLong(result);
+    }
+
+    /**
+     * The reply to an evaluated request, with its items if it is a BATCH
+     */
+    public static byte[] reply(Command request) {
+        Batch batch = request.getBatch();
+        if (batch == null) {
+            return reply(request.getStatus(), request.getRequestId(), request.getResult());
+        }
+
+        byte[] frame = new byte[REPLY_SIZE + batch.size() * ITEM_REPLY_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.put(request.getStatus()).putInt(request.getRequestId()).putLong(request.getResult());
+
+        for (int i = 0; i < batch.size(); i++) {
+            buffer.put(batch.getStatus(i)).putLong(batch.getResult(i));
+        }
+
+        return frame;
+    }
+
+    public static byte[] reply(byte status, int requestId, long result) {
+        byte[] frame = new byte[REPLY_SIZE];
+        encodeReply(status, requestId, result, frame, 0);
+
+        return frame;
+    }
+
+    /**
+     * A copy of the reply frame {reply} addressed to {requestId}
+     */
+    public static byte[] withRequestId(byte[] reply, int requestId) {
+        byte[] frame = reply.clone();
+        ByteBuffer.wrap(frame, 1, 4).putInt(requestId);
+
+        return frame;
+    }
+}
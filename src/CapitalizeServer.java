@@ -1,13 +1,21 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.text.SimpleDateFormat;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A server program which accepts requests from clients to
@@ -23,40 +31,255 @@ import java.util.Date;
 public class CapitalizeServer {
     private static SharedQueue<Job> jobQueue;
     private static ThreadManager manager;
+    // null unless --rate-limit is set
+    private static RateLimiter rateLimiter;
+    // null unless --reply-writers is set
+    private static ReplyWriter replyWriter;
+    private static final AtomicInteger clientNumbers = new AtomicInteger();
 
     /**
      * Application method to run the server runs in an infinite loop
-     * listening on port 9898.  When a connection is requested, it
+     * listening on port 9898 (or --port).  When a connection is requested, it
      * spawns a new thread to do the servicing and immediately returns
      * to listening.  The server keeps a unique client number for each
      * client that connects just to show interesting logging
      * messages.  It is certainly not necessary to do this.
-     */
+     *
+     * Options:
+     *   --port=N                 port to listen on (default: 9898)
+     *   --backlog=N              connections the kernel queues until they are accepted
+     *                            (default: 50)
+     *   --acceptors=N            threads accepting connections, spread over the listeners;
+     *                            thread front end only (default: 1)
+     *   --listeners=N            listening sockets for the thread front end (default: 1)
+     *   --shard-by=reuseport|ports
+     *                            put every listener on --port with SO_REUSEPORT so the kernel
+     *                            spreads connections over them, or on consecutive ports from
+     *                            --port; falls back to ports without SO_REUSEPORT
+     *                            (default: reuseport)
+     *   --queue=linked|ring|stealing|lanes
+     *                            job queue implementation (default: linked)
+     *   --steal-by=roundrobin|client
+     *                            how --queue=stealing spreads jobs over workers (default: roundrobin)
+     *   --lane-weights=I,B       share of --queue=lanes given to one-off commands and to
+     *                            pipelined/binary streams (default: 4,1)
+     *   --frontend=thread|nio    thread per connection, or selector based I/O (default: thread)
+     *   --io-threads=N           number of selector threads for the nio front end (default: 1)
+     *   --keepalive              accept many pipelined commands per connection
+     *   --idle-timeout=MS        close keepalive connections idle this long (default: 30000)
+     *   --binary                 let clients switch to the binary protocol by sending its
+     *                            magic byte first; text clients get their welcome message
+     *                            after a short wait (see BinaryProtocol)
+     *   --batch=N                most jobs a worker takes off the queue at once, with
+     *                            --executor=workers (default: 1)
+     *   --executor=workers|virtual
+     *                            fixed platform workers, or a virtual thread per job and per
+     *                            client handler (default: workers)
+     *   --max-concurrency=N      most jobs running at once with --executor=virtual (default: 1000)
+     *   --log-level=debug|info|warn|error
+     *                            lowest level logged; per-job lines are debug (default: debug)
+     *   --log-buffer=N           lines buffered for the log writer before dropping (default: 8192)
+     *   --metrics-port=N         serve Prometheus metrics on this loopback port (default: off)
+     *   --scaling=threshold|latency
+     *                            resize the pool on queue length thresholds, or to keep queue
+     *                            wait under --target-wait (default: threshold)
+     *   --target-wait=MS         queue wait the latency policy aims for (default: 100)
+     *   --scale-cooldown=MS      least time between resizes before the latency policy
+     *                            shrinks the pool (default: 3000)
+     *   --worker-idle-timeout=MS workers beyond the initial ones exit after this long
+     *                            without a job; 0 to keep them (default: 60000)
+     *   --admission=off|codel   shed load once jobs have queued longer than --codel-target
+     *                            for a whole --codel-interval, replying with a retry-after
+     *                            hint (default: off)
+     *   --codel-target=MS        queue wait that counts as too long (default: 200)
+     *   --codel-interval=MS      how long waits must stay too long (default: 1000)
+     *   --rate-limit=N           commands per second each remote address may send; more
+     *                            are turned away with a retry-after hint (default: 0, off)
+     *   --rate-burst=N           commands an address may send at once (default: the rate)
+     *   --cache-size=N           answer repeated arithmetic from a cache of this many replies
+     *                            without queueing it (default: 0, off)
+     *   --journal=DIR            keep a write-ahead journal of queued jobs in DIR and rerun
+     *                            the unfinished ones on startup (default: off)
+     *   --journal-segment=MB     size of each journal segment file (default: 16)
+     *   --journal-sync=none|group
+     *                            leave writing the journal back to the OS, or fsync each job
+     *                            before queueing it, sharing fsyncs between jobs arriving
+     *                            together (default: none)
+     *   --reply-writers=N        write replies on N writer threads instead of the worker that
+     *                            ran the job, coalescing replies to the same client; thread
+     *                            front end only (default: 0, off)
+     *   --output-limit=BYTES     close a client with more than this many reply bytes waiting
+     *                            to be written, with the nio front end or --reply-writers;
+     *                            0 for no limit (default: 1048576)
+     *   --job-timeout=MS         deadline for jobs whose client didn't give one; a job still
+     *                            queued after this long is answered with a timeout instead of
+     *                            being run (default: 0, none)
+     *   --timer-tick=MS          resolution of the timing wheel that times out queued jobs
+     *                            (default: 10)
+     */
     public static void main(String[] args) throws Exception {
-        System.out.println("The capitalization server is running.");
-        int clientNumber = 0;
-        ServerSocket listener = new ServerSocket(9898);
+        ServerOptions options = new ServerOptions(args);
+        Log.setLevel(Log.parseLevel(options.getString("log-level", "debug")));
+        Log.setBufferSize(options.getInt("log-buffer", 8192));
 
+        log("The capitalization server is running.");
         int t1 = 10, t2 = 20, capacity = 50;
+        boolean keepAlive = options.getBoolean("keepalive", false);
+        int idleTimeout = options.getInt("idle-timeout", 30000);
+        boolean binary = options.getBoolean("binary", false);
+        int port = options.getInt("port", 9898);
+        int backlog = options.getInt("backlog", 50);
 
-        jobQueue = new SharedQueue<>(capacity);
+        int rateLimit = options.getInt("rate-limit", 0);
+        if (rateLimit > 0) {
+            rateLimiter = new RateLimiter(rateLimit, options.getInt("rate-burst", rateLimit));
+            Metrics.registerGauge("rate_limited_sources", rateLimiter::sources);
+        }
+
+        int cacheSize = options.getInt("cache-size", 0);
+        if (cacheSize > 0) {
+            ResultCache cache = new ResultCache(cacheSize);
+            Job.setCache(cache);
+            Metrics.registerGauge("cache_entries", cache::size);
+        }
+
+        TimingWheel timers = new TimingWheel(options.getInt("timer-tick", 10));
+        timers.start();
+        Job.setDeadlines(timers, options.getInt("job-timeout", 0));
+        Metrics.registerGauge("timers_pending", timers::size);
+
+        jobQueue = createQueue(options, capacity);
+
+        int outputLimit = options.getInt("output-limit", 1024 * 1024);
+        int replyWriters = options.getInt("reply-writers", 0);
+        if (replyWriters > 0) {
+            replyWriter = new ReplyWriter(replyWriters, outputLimit);
+            replyWriter.start();
+            Metrics.registerGauge("reply_backlog", replyWriter::backlog);
+        }
+
+        NioServer nioServer = null;
+        List<ServerSocket> listeners;
+        switch (options.getString("frontend", "thread")) {
+            case "thread":
+                listeners = openListeners(port, options.getInt("listeners", 1), backlog,
+                        options.getString("shard-by", "reuseport"));
+                break;
+            case "nio":
+                nioServer = new NioServer(port, backlog, jobQueue, options.getInt("io-threads", 1), keepAlive, idleTimeout,
+                        binary, rateLimiter, outputLimit);
+                listeners = List.of(nioServer.socket());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown front end: " + options.getString("frontend", ""));
+        }
 
-        ThreadPool pool = new ThreadPool(capacity, jobQueue);
-        manager = new ThreadManager(listener, pool, jobQueue, t1, t2);
+        JobPool pool;
+        ThreadFactory handlerFactory;
+        switch (options.getString("executor", "workers")) {
+            case "workers":
+                ThreadPool workerPool = new ThreadPool(capacity, jobQueue, options.getInt("batch", 1));
+                workerPool.setIdleTimeout(options.getInt("worker-idle-timeout", 60000), ThreadManager.INITIAL_WORKERS);
+                pool = workerPool;
+                handlerFactory = Thread::new;
+                break;
+            case "virtual":
+                if (options.getInt("batch", 1) != 1) {
+                    Log.warn("Main", "--batch has no effect with --executor=virtual, which runs one job per thread");
+                }
+                VirtualThreadPool virtualPool = new VirtualThreadPool(options.getInt("max-concurrency", 1000), jobQueue);
+                virtualPool.start();
+                pool = virtualPool;
+                handlerFactory = VirtualThreadPool.threadFactory();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + options.getString("executor", ""));
+        }
+
+        ScalingPolicy policy;
+        switch (options.getString("scaling", "threshold")) {
+            case "threshold":
+                policy = new ThresholdPolicy(t1, t2, ThreadManager.INITIAL_WORKERS);
+                break;
+            case "latency":
+                policy = new LatencyTargetPolicy(options.getInt("target-wait", 100),
+                        ThreadManager.INITIAL_WORKERS, options.getInt("scale-cooldown", 3000));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scaling policy: " + options.getString("scaling", ""));
+        }
+
+        switch (options.getString("admission", "off")) {
+            case "off":
+                break;
+            case "codel":
+                AdmissionController admission = new AdmissionController(options.getInt("codel-target", 200),
+                        options.getInt("codel-interval", 1000), policy.highWatermark());
+                Job.setAdmission(admission);
+
+                if (policy instanceof ThresholdPolicy) {
+                    // it resets the pool whenever the queue is short, which is what shedding aims for
+                    Log.warn("Main", "--admission=codel works best with --scaling=latency");
+                }
+                Metrics.registerGauge("overloaded", () -> admission.isOverloaded() ? 1 : 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown admission control: " + options.getString("admission", ""));
+        }
+        manager = new ThreadManager(listeners, pool, jobQueue, policy);
+
+        Metrics.registerGauge("queue_depth", jobQueue::size);
+        Metrics.registerGauge("pool_workers", pool::activeWorkers);
+
+        int metricsPort = options.getInt("metrics-port", 0);
+        if (metricsPort > 0) {
+            new MetricsExporter(metricsPort).start();
+        }
 
         Thread managerThread = new Thread(manager, "ThreadManager");
         managerThread.start();
 
-        try {
-            while (!manager.isKilled()) {
-                ClientHandler clientHandler = new ClientHandler(listener.accept(), clientNumber++);
-                clientHandler.setName("Client handler " + clientNumber);
-                clientHandler.start();
+        String journalDirectory = options.getString("journal", "");
+        if (!journalDirectory.isEmpty()) {
+            boolean sync;
+            switch (options.getString("journal-sync", "none")) {
+                case "group":
+                    sync = true;
+                    break;
+                case "none":
+                    sync = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown journal sync: " + options.getString("journal-sync", ""));
             }
-        } catch (SocketException e) {
-            // we probably got this exception because the manager killed us
-            if (!manager.isKilled()) {
-                throw e;
+
+            JobJournal journal = new JobJournal(Paths.get(journalDirectory),
+                    options.getInt("journal-segment", 16) * 1024 * 1024, sync);
+            Job.setJournal(journal);
+            Metrics.registerGauge("journal_live", journal::live);
+            Metrics.registerCounter("journal_syncs", journal::syncs);
+            replay(journal);
+        }
+
+        try {
+            if (nioServer != null) {
+                nioServer.serve(manager);
+            } else {
+                int acceptors = Math.max(options.getInt("acceptors", 1), listeners.size());
+                Thread[] acceptorThreads = new Thread[acceptors - 1];
+
+                for (int i = 1; i < acceptors; i++) {
+                    Acceptor acceptor = new Acceptor(listeners.get(i % listeners.size()), handlerFactory, keepAlive,
+                            idleTimeout, binary);
+                    acceptorThreads[i - 1] = new Thread(acceptor, "Acceptor " + i);
+                    acceptorThreads[i - 1].start();
+                }
+
+                new Acceptor(listeners.get(0), handlerFactory, keepAlive, idleTimeout, binary).run();
+
+                for (Thread thread : acceptorThreads) {
+                    thread.join();
+                }
             }
         } finally {
             log("Killing manager");
@@ -64,30 +287,186 @@ public class CapitalizeServer {
             pool.join();
             log("Joining the thread pool");
 
-            listener.close();
+            if (replyWriter != null) {
+                replyWriter.shutdown();
+            }
+            timers.shutdown();
+            for (ServerSocket listener : listeners) {
+                listener.close();
+            }
         }
 
         log("Exiting");
+        Log.flush();
+    }
+
+    /**
+     * Opens {count} listening sockets: all on {port} with SO_REUSEPORT, so
+     * the kernel spreads new connections over them, or on consecutive ports
+     * from {port}
+     */
+    private static List<ServerSocket> openListeners(int port, int count, int backlog, String shardBy)
+            throws IOException {
+        boolean reusePort;
+        switch (shardBy) {
+            case "reuseport":
+                reusePort = count > 1;
+                break;
+            case "ports":
+                reusePort = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown listener sharding: " + shardBy);
+        }
+
+        List<ServerSocket> listeners = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ServerSocket listener = new ServerSocket();
+
+            if (reusePort && !listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                Log.warn("Main", "SO_REUSEPORT isn't supported here -- listening on consecutive ports instead");
+                reusePort = false;
+            }
+            if (reusePort) {
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+
+            listener.bind(new InetSocketAddress(reusePort ? port : port + i), backlog);
+            listeners.add(listener);
+        }
+
+        if (count > 1) {
+            log("Listening with " + count + (reusePort ? " sockets on port " + port
+                    : " sockets on ports " + port + "-" + (port + count - 1)));
+        }
+
+        return listeners;
+    }
+
+    /**
+     * Queues the jobs an earlier run left unfinished, waiting for room when
+     * the queue is full, before any client is accepted
+     */
+    private static void replay(JobJournal journal) throws IOException, InterruptedException {
+        for (JobJournal.Recovered recovered : journal.recovered()) {
+            while (!recovered.toJob().enqueue(jobQueue)) {
+                Thread.sleep(10);
+            }
+        }
+
+        journal.discardRecovered();
+    }
+
+    private static SharedQueue<Job> createQueue(ServerOptions options, int capacity) {
+        String type = options.getString("queue", "linked");
+        String stealBy = options.getString("steal-by", "roundrobin");
+
+        switch (type) {
+            case "linked":
+                return new SharedQueue<>(capacity);
+            case "ring":
+                return new RingBufferQueue<>(capacity);
+            case "stealing":
+                // one lane per possible worker
+                switch (stealBy) {
+                    case "roundrobin":
+                        return new WorkStealingQueue<>(capacity, capacity, null);
+                    case "client":
+                        return new WorkStealingQueue<>(capacity, capacity, Job::getClient);
+                    default:
+                        throw new IllegalArgumentException("Unknown --steal-by: " + stealBy);
+                }
+            case "lanes":
+                return new PriorityLaneQueue<>(capacity, parseWeights(options.getString("lane-weights", "4,1")),
+                        Job::getLane, Job::getClient);
+            default:
+                throw new IllegalArgumentException("Unknown queue type: " + type);
+        }
+    }
+
+    /**
+     * "4,1" as {4, 1}
+     */
+    private static int[] parseWeights(String weights) {
+        String[] parts = weights.split(",");
+        int[] parsed = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+
+        return parsed;
     }
 
     private static void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
+        Log.info("Main", message);
+    }
+
+    /**
+     * Accepts connections on one listener and starts a handler for each,
+     * until the manager is killed. Several acceptors can share a listener.
+     */
+    private static class Acceptor implements Runnable {
+        private final ServerSocket listener;
+        private final ThreadFactory handlerFactory;
+        private final boolean keepAlive;
+        private final int idleTimeout;
+        private final boolean binary;
+
+        Acceptor(ServerSocket listener, ThreadFactory handlerFactory, boolean keepAlive, int idleTimeout, boolean binary) {
+            this.listener = listener;
+            this.handlerFactory = handlerFactory;
+            this.keepAlive = keepAlive;
+            this.idleTimeout = idleTimeout;
+            this.binary = binary;
+        }
 
-        System.out.printf("[Main] %s at %s\n", message, dt.format(new Date()));
+        public void run() {
+            while (!manager.isKilled()) {
+                try {
+                    Socket socket = listener.accept();
+                    long acceptedAt = System.nanoTime();
+                    int clientNumber = clientNumbers.getAndIncrement();
+
+                    ClientHandler clientHandler = new ClientHandler(socket, clientNumber, keepAlive, idleTimeout, binary);
+                    Thread handlerThread = handlerFactory.newThread(clientHandler);
+                    handlerThread.setName("Client handler " + (clientNumber + 1));
+                    handlerThread.start();
+
+                    Metrics.connectionAccepted(acceptedAt);
+                } catch (IOException e) {
+                    // we probably got this exception because the manager killed us
+                    if (manager.isKilled() || listener.isClosed()) {
+                        return;
+                    }
+
+                    Log.warn(Thread.currentThread().getName(), "Error accepting a connection: ", e);
+                }
+            }
+        }
     }
 
     /**
-     * A private thread to handle capitalization requests on a particular
-     * socket.  The client terminates the dialogue by sending a single line
-     * containing only a period.
-     */
-    private static class ClientHandler extends Thread {
+     * A private task to handle capitalization requests on a particular
+     * socket.  The client terminates the dialogue by sending a single line
+     * containing only a period.
+     */
+    private static class ClientHandler implements Runnable {
         private Socket socket;
         private int clientNumber;
+        private String logSource;
+        private boolean keepAlive;
+        private int idleTimeout;
+        // whether clients may switch to the binary protocol
+        private boolean binary;
 
-        public ClientHandler(Socket socket, int clientNumber) {
+        public ClientHandler(Socket socket, int clientNumber, boolean keepAlive, int idleTimeout, boolean binary) {
             this.socket = socket;
             this.clientNumber = clientNumber;
+            this.logSource = "Capitalize thread for client " + clientNumber;
+            this.keepAlive = keepAlive;
+            this.idleTimeout = idleTimeout;
+            this.binary = binary;
         }
 
         /**
@@ -100,12 +479,28 @@ public class CapitalizeServer {
                 // Decorate the streams so we can send characters
                 // and not just bytes.  Ensure output is flushed
                 // after every newline.
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                InputStream stream = socket.getInputStream();
+                Responder out = replyWriter != null ? replyWriter.responder(socket) : new SocketResponder(socket);
+
+                if (binary) {
+                    PushbackInputStream pushback = new PushbackInputStream(stream, 1);
+                    stream = pushback;
+
+                    if (negotiateBinary(pushback)) {
+                        serveBinary(pushback, out);
+                        return;
+                    }
+                }
+
+                BufferedReader in = new BufferedReader(new InputStreamReader(stream));
 
                 // Send a welcome message to the client.
-                out.println("Hello, you are client #" + clientNumber + ".");
+                out.send("Hello, you are client #" + clientNumber + ".");
+
+                if (keepAlive) {
+                    servePipelined(in, out);
+                    return;
+                }
 
                 // Get messages from the client, line by line; return them
                 // capitalized
@@ -113,23 +508,200 @@ public class CapitalizeServer {
                 if (input == null) {
                     log("bad input");
                     socket.close();
+                    return;
                 }
 
-                if (!jobQueue.add(new Job(out, socket, clientNumber, input))) {
-                    out.println("Server is too busy to handle request right now, please try again later");
-                    log("Too busy -- had to kill client");
+                if (throttled(out, input, null)) {
+                    out.close();
+                } else if (Job.replyFromCache(out, input)) {
+                    log("Answered from the cache");
+                } else {
+                    Job job = new Job(out, clientNumber, input);
+
+                    if (!job.enqueue(jobQueue)) {
+                        out.send(job.rejectionLine());
+                        warn("Too busy -- had to kill client");
+                        out.close();
+                    }
                 }
             } catch (IOException e) {
-                log("Error:" + e);
+                warn("Error:" + e);
             } finally {
                 log("Client handler done");
             }
         }
 
+        /**
+         * Reads commands until the client closes its side of the connection
+         * or stays quiet for longer than the idle timeout. Each line becomes
+         * its own job; replies are written back in the order the commands
+         * arrived no matter which worker finishes first.
+         */
+        private void servePipelined(BufferedReader in, Responder out) throws IOException {
+            PipelinedConnection connection = new PipelinedConnection(out);
+            socket.setSoTimeout(idleTimeout);
+            // cleared if we stop reading while the client is still there
+            boolean hungUp = true;
+
+            try {
+                String input;
+                while ((input = in.readLine()) != null) {
+                    Responder slot = connection.next();
+
+                    if (throttled(slot, input, null)) {
+                        slot.close();
+                        continue;
+                    }
+
+                    if (Job.replyFromCache(slot, input)) {
+                        continue;
+                    }
+
+                    Job job = new Job(slot, clientNumber, input);
+                    if (!job.enqueue(jobQueue)) {
+                        slot.send(job.rejectionLine());
+                        slot.close();
+                        warn("Too busy -- rejected command");
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                log("Idle for " + idleTimeout + "ms -- closing");
+                hungUp = false;
+            } finally {
+                if (hungUp) {
+                    connection.abandon();
+                } else {
+                    connection.finishInput();
+                }
+            }
+        }
+
+        /**
+         * Turns the command away if the client is over its rate limit. KILL
+         * and STATS are never limited.
+         * @param command the text command, or null for a binary one
+         * @param request the binary request, or null for a text command
+         * @return whether it was turned away; {out} is left open
+         */
+        private boolean throttled(Responder out, String command, Command request) throws IOException {
+            if (rateLimiter == null || Job.isControl(command, request)) {
+                return false;
+            }
+
+            long retryAfter = rateLimiter.acquire(socket.getInetAddress());
+            if (retryAfter == 0) {
+                return false;
+            }
+
+            if (request != null) {
+                out.reply(BinaryProtocol.reply(Command.RATE_LIMITED, request.getRequestId(), retryAfter), 0, BinaryProtocol.REPLY_SIZE);
+            } else {
+                out.send(RateLimiter.rejectionLine(retryAfter));
+            }
+            log("Over the rate limit -- rejected command");
+
+            return true;
+        }
+
+        /**
+         * Waits briefly for the client's first byte to see whether it wants
+         * the binary protocol. Anything else is pushed back for the text
+         * reader; a client that says nothing is a text client waiting for
+         * its welcome message.
+         */
+        private boolean negotiateBinary(PushbackInputStream in) throws IOException {
+            socket.setSoTimeout(BinaryProtocol.NEGOTIATION_TIMEOUT);
+
+            try {
+                int first = in.read();
+
+                if (first == (BinaryProtocol.MAGIC & 0xff)) {
+                    return true;
+                }
+                if (first != -1) {
+                    in.unread(first);
+                }
+            } catch (SocketTimeoutException e) {
+                // text client
+            } finally {
+                socket.setSoTimeout(0);
+            }
+
+            return false;
+        }
+
+        /**
+         * Reads request frames until the client closes its side or goes
+         * idle. Like the keepalive text mode each frame becomes a job and
+         * the replies go back in request order.
+         */
+        private void serveBinary(InputStream input, Responder out) throws IOException {
+            log("Using the binary protocol");
+            PipelinedConnection connection = new PipelinedConnection(out);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+            byte[] frame = new byte[BinaryProtocol.REQUEST_SIZE];
+            socket.setSoTimeout(idleTimeout);
+            // cleared if we stop reading while the client is still there
+            boolean hungUp = true;
+
+            try {
+                while (true) {
+                    in.readFully(frame);
+
+                    Command command = BinaryProtocol.decodeRequest(frame, 0);
+                    Responder slot = connection.next();
+
+                    int bodyLength = BinaryProtocol.bodyLength(command);
+                    if (bodyLength < 0) {
+                        // can't tell where the next frame starts, so stop reading
+                        slot.reply(BinaryProtocol.reply(Command.BAD_ARGUMENT, command.getRequestId(), 0), 0, BinaryProtocol.REPLY_SIZE);
+                        slot.close();
+                        warn("Bad batch size " + command.getA() + " -- closing");
+                        hungUp = false;
+                        break;
+                    }
+                    if (bodyLength > 0) {
+                        byte[] body = new byte[bodyLength];
+                        in.readFully(body);
+                        BinaryProtocol.decodeBody(command, body, 0);
+                    }
+
+                    if (throttled(slot, null, command)) {
+                        slot.close();
+                        continue;
+                    }
+
+                    if (Job.replyFromCache(slot, command)) {
+                        continue;
+                    }
+
+                    Job job = new Job(slot, clientNumber, command);
+                    if (!job.enqueue(jobQueue)) {
+                        slot.reply(job.rejectionFrame(), 0, BinaryProtocol.REPLY_SIZE);
+                        slot.close();
+                        warn("Too busy -- rejected request " + command.getRequestId());
+                    }
+                }
+            } catch (EOFException e) {
+                log("Client finished sending");
+            } catch (SocketTimeoutException e) {
+                log("Idle for " + idleTimeout + "ms -- closing");
+                hungUp = false;
+            } finally {
+                if (hungUp) {
+                    connection.abandon();
+                } else {
+                    connection.finishInput();
+                }
+            }
+        }
+
         private void log(String message) {
-            SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
+            Log.debug(logSource, message);
+        }
 
-            System.out.printf("[Capitalize thread for client %d] %s at %s\n", clientNumber, message, dt.format(new Date()));
+        private void warn(String message) {
+            Log.warn(logSource, message);
         }
     }
 }
@@ -0,0 +1,352 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fronts several CapitalizeServer nodes on one port. Clients connect and
+ * send commands exactly as they would to a single server; each command is
+ * forwarded to one node, chosen either by consistent hashing on the client's
+ * address (so a client keeps landing on the same node, even though every
+ * command comes on a new connection) or by whichever node
+ * has the shortest queue, going by the queue_depth its ThreadManager reports
+ * in STATS.
+ *
+ * A background thread checks every node's STATS on an interval. A node that
+ * doesn't answer, or that fails a forwarded command, is taken out of routing
+ * until it answers again, and its share of the ring moves to the others.
+ * Nodes can also be added and removed while running.
+ *
+ * Commands understood by the coordinator itself:
+ *   STATS                  node counts followed by every node's STATS counters summed
+ *   NODES                  each node, whether it is healthy and its last known load
+ *   ADD_NODE,host:port     start routing to another node
+ *   REMOVE_NODE,host:port  stop routing to a node
+ *   KILL                   stop the coordinator (the nodes keep running)
+ */
+public class ClusterCoordinator {
+    private static final String NO_NODES_MESSAGE = "No healthy nodes to handle request, please try again later";
+
+    private final List<ClusterNode> nodes = new CopyOnWriteArrayList<>();
+    private final boolean leastDepth;
+    private final int nodeTimeout;
+    private final int healthInterval;
+    private final int healthTimeout;
+    // health checks a node may fail in a row before it leaves routing
+    private final int healthMisses;
+    private final ServerSocket listener;
+    private volatile HashRing ring;
+    private volatile boolean killed;
+
+    ClusterCoordinator(int port, List<ClusterNode> nodes, boolean leastDepth, int nodeTimeout, int healthInterval,
+                       int healthTimeout, int healthMisses) throws IOException {
+        this.nodes.addAll(nodes);
+        this.leastDepth = leastDepth;
+        this.nodeTimeout = nodeTimeout;
+        this.healthInterval = healthInterval;
+        this.healthTimeout = healthTimeout;
+        this.healthMisses = Math.max(healthMisses, 1);
+        this.listener = new ServerSocket(port);
+        rebuildRing();
+    }
+
+    /**
+     * Options:
+     *   --port=N                 port to listen on (default: 9898)
+     *   --nodes=A,B,...          the servers to forward to, each "host:port" or just a
+     *                            local port (required)
+     *   --route=hash|least-depth pick a node by hashing the client's address, or the node with
+     *                            the shortest queue (default: hash)
+     *   --health-interval=MS     time between health checks of every node (default: 1000)
+     *   --health-timeout=MS      how long a health check waits for the node's STATS, which
+     *                            queues behind its other work (default: 5000)
+     *   --health-misses=N        health checks a node may fail in a row before it stops
+     *                            getting commands (default: 3)
+     *   --node-timeout=MS        how long to wait on a node before giving up (default: 30000)
+     *   --log-level=debug|info|warn|error
+     *                            lowest level logged (default: debug)
+     */
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        Log.setLevel(Log.parseLevel(options.getString("log-level", "debug")));
+
+        String nodeList = options.getString("nodes", "");
+        if (nodeList.isEmpty()) {
+            throw new IllegalArgumentException("--nodes is required");
+        }
+
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (String address : nodeList.split(",")) {
+            nodes.add(ClusterNode.parse(address));
+        }
+
+        boolean leastDepth;
+        switch (options.getString("route", "hash")) {
+            case "hash":
+                leastDepth = false;
+                break;
+            case "least-depth":
+                leastDepth = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown routing: " + options.getString("route", ""));
+        }
+
+        ClusterCoordinator coordinator = new ClusterCoordinator(options.getInt("port", 9898), nodes, leastDepth,
+                options.getInt("node-timeout", 30000), options.getInt("health-interval", 1000),
+                options.getInt("health-timeout", 5000), options.getInt("health-misses", 3));
+        coordinator.serve();
+
+        log("Exiting");
+        Log.flush();
+    }
+
+    /**
+     * Accepts clients until KILL, a thread for each
+     */
+    public void serve() throws IOException {
+        log("The cluster coordinator is running with nodes " + nodes);
+
+        Thread healthThread = new Thread(this::checkHealth, "Health checks");
+        healthThread.setDaemon(true);
+        healthThread.start();
+
+        int clientNumber = 0;
+        try {
+            while (!killed) {
+                Thread handlerThread = new Thread(new ClientHandler(listener.accept(), clientNumber++));
+                handlerThread.setName("Coordinator handler " + clientNumber);
+                handlerThread.start();
+            }
+        } catch (SocketException e) {
+            // we probably got this exception because a client killed us
+            if (!killed) {
+                throw e;
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    private void kill() {
+        killed = true;
+
+        try {
+            listener.close();
+        } catch (IOException e) {
+            Log.warn("Coordinator", "Error closing the listener: ", e);
+        }
+    }
+
+    private void checkHealth() {
+        while (!killed) {
+            boolean changed = false;
+
+            for (ClusterNode node : nodes) {
+                boolean wasHealthy = node.isHealthy();
+
+                if (node.check(Math.min(nodeTimeout, healthTimeout), healthMisses) != wasHealthy) {
+                    log("Node " + node + (wasHealthy ? " is down" : " is back up"));
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                rebuildRing();
+            }
+
+            try {
+                Thread.sleep(healthInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Places the healthy nodes on a new ring. Only the keys of nodes that
+     * came or went move.
+     */
+    private synchronized void rebuildRing() {
+        List<ClusterNode> healthy = new ArrayList<>();
+        for (ClusterNode node : nodes) {
+            if (node.isHealthy()) {
+                healthy.add(node);
+            }
+        }
+
+        ring = new HashRing(healthy);
+    }
+
+    /**
+     * The node the next command from the client with {affinity} should go
+     * to, or null if none are healthy
+     * @param affinity stable for a client across connections
+     */
+    private ClusterNode route(int affinity) {
+        if (!leastDepth) {
+            return ring.nodeFor(affinity);
+        }
+
+        ClusterNode best = null;
+        for (ClusterNode node : nodes) {
+            if (node.isHealthy() && (best == null || node.load() < best.load())) {
+                best = node;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Sends {command} to a node, moving on to another once if the first one
+     * fails
+     */
+    private String forward(String command, int affinity) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ClusterNode node = route(affinity);
+            if (node == null) {
+                break;
+            }
+
+            try {
+                return node.send(command, nodeTimeout);
+            } catch (IOException e) {
+                Log.warn("Coordinator", "Node " + node + " failed, taking it out of routing: ", e);
+                node.markDown();
+                rebuildRing();
+            }
+        }
+
+        return NO_NODES_MESSAGE;
+    }
+
+    private String stats() {
+        List<String> replies = new ArrayList<>();
+        for (ClusterNode node : nodes) {
+            if (node.isHealthy() && node.check(nodeTimeout, healthMisses)) {
+                replies.add(node.lastStats());
+            }
+        }
+
+        String totals = ClusterStats.sum(replies);
+        return "nodes=" + nodes.size() + " healthy=" + replies.size() + (totals.isEmpty() ? "" : " " + totals);
+    }
+
+    private String listNodes() {
+        StringBuilder out = new StringBuilder();
+        for (ClusterNode node : nodes) {
+            out.append(node).append(node.isHealthy() ? " up" : " down").append(" load=").append(node.load()).append("; ");
+        }
+
+        return out.length() == 0 ? "No nodes" : out.substring(0, out.length() - 2);
+    }
+
+    private synchronized String addNode(String address) {
+        ClusterNode node = ClusterNode.parse(address);
+        for (ClusterNode existing : nodes) {
+            if (existing.toString().equals(node.toString())) {
+                return "Node " + node + " is already in the cluster";
+            }
+        }
+
+        // a new node starts out of routing unless it answers straight away
+        node.check(nodeTimeout, 1);
+        nodes.add(node);
+        rebuildRing();
+        String added = "Added node " + node + (node.isHealthy() ? "" : ", which is not answering yet");
+        log(added);
+
+        return added;
+    }
+
+    private synchronized String removeNode(String address) {
+        String name = ClusterNode.parse(address).toString();
+        for (ClusterNode node : nodes) {
+            if (node.toString().equals(name)) {
+                nodes.remove(node);
+                rebuildRing();
+                log("Removed node " + node);
+
+                return "Removed node " + node;
+            }
+        }
+
+        return "Node " + name + " is not in the cluster";
+    }
+
+    private static void log(String message) {
+        Log.info("Coordinator", message);
+    }
+
+    private class ClientHandler implements Runnable {
+        private final Socket socket;
+        private final int clientNumber;
+        private final String logSource;
+
+        ClientHandler(Socket socket, int clientNumber) {
+            this.socket = socket;
+            this.clientNumber = clientNumber;
+            this.logSource = "Coordinator thread for client " + clientNumber;
+        }
+
+        /**
+         * Welcomes the client, reads one command and answers it either here
+         * or by forwarding it to a node
+         */
+        public void run() {
+            try (Socket socket = this.socket) {
+                Responder out = new SocketResponder(socket);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                out.send("Hello, you are client #" + clientNumber + ".");
+
+                String input = in.readLine();
+                if (input == null) {
+                    log("bad input");
+                    return;
+                }
+
+                out.send(handle(input.trim()));
+            } catch (IOException e) {
+                log("Error handling client# " + clientNumber + ": " + e);
+            }
+        }
+
+        private String handle(String command) {
+            int comma = command.indexOf(',');
+            String name = comma == -1 ? command : command.substring(0, comma);
+            String argument = comma == -1 ? "" : command.substring(comma + 1);
+
+            try {
+                switch (name) {
+                    case "KILL":
+                        log("Killing the coordinator");
+                        kill();
+                        return "Coordinator stopping";
+                    case "STATS":
+                        return stats();
+                    case "NODES":
+                        return listNodes();
+                    case "ADD_NODE":
+                        return addNode(argument);
+                    case "REMOVE_NODE":
+                        return removeNode(argument);
+                    default:
+                        return forward(command, socket.getInetAddress().hashCode());
+                }
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+        }
+
+        private void log(String message) {
+            Log.debug(logSource, message);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A CapitalizeServer the coordinator forwards commands to, along with what
+ * the coordinator last heard about it: whether it answered its last health
+ * check and how deep its queue was.
+ */
+public class ClusterNode {
+    private final String host;
+    private final int port;
+
+    private volatile boolean healthy = true;
+    // health checks failed in a row
+    private final AtomicInteger misses = new AtomicInteger();
+    private volatile int queueDepth;
+    private volatile String lastStats = "";
+    // commands forwarded and not yet answered
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    ClusterNode(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * "host:port", or just "port" for localhost
+     */
+    public static ClusterNode parse(String address) {
+        int colon = address.lastIndexOf(':');
+
+        try {
+            if (colon == -1) {
+                return new ClusterNode("localhost", Integer.parseInt(address.trim()));
+            }
+
+            return new ClusterNode(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad node address: " + address);
+        }
+    }
+
+    /**
+     * Sends one command the way a client would and returns the reply line
+     * @param timeout socket timeout in milliseconds
+     */
+    public String send(String command, int timeout) throws IOException {
+        outstanding.incrementAndGet();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            out.write((command + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // the welcome message
+            if (in.readLine() == null) {
+                throw new IOException("Node closed the connection");
+            }
+
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Node closed the connection");
+            }
+
+            return reply;
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Asks the node for its STATS. STATS waits in the node's queue like any
+     * other command, so a busy node can be slow to answer; it is only taken
+     * out of routing once it has failed {allowedMisses} checks in a row.
+     * @return whether it now counts as healthy
+     */
+    public boolean check(int timeout, int allowedMisses) {
+        try {
+            String stats = send("STATS", timeout);
+            queueDepth = (int) ClusterStats.value(stats, "queue_depth");
+            lastStats = stats;
+            misses.set(0);
+            healthy = true;
+        } catch (IOException e) {
+            if (misses.incrementAndGet() >= allowedMisses) {
+                healthy = false;
+            }
+        }
+
+        return healthy;
+    }
+
+    /**
+     * Takes the node out of routing until a health check gets through
+     */
+    public void markDown() {
+        healthy = false;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * The node's queue depth as of its last health check plus whatever has
+     * been forwarded since and is still waiting for a reply
+     */
+    public int load() {
+        return queueDepth + outstanding.get();
+    }
+
+    /**
+     * The node's reply to its last successful health check
+     */
+    public String lastStats() {
+        return lastStats;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the "name=value" pairs of a STATS reply and adds them up across
+ * nodes. Counters and gauges (jobs, rejected, queue_depth, ...) sum
+ * meaningfully; the latency percentiles don't, so they are left out.
+ */
+public final class ClusterStats {
+    private static final String RATE_SUFFIX = "/s";
+
+    private ClusterStats() {
+    }
+
+    /**
+     * The number after "{name}=" in {stats}, or 0 if it isn't there
+     */
+    public static double value(String stats, String name) {
+        for (String token : stats.split(" ")) {
+            int equals = token.indexOf('=');
+
+            if (equals != -1 && token.regionMatches(0, name, 0, equals) && equals == name.length()) {
+                Double parsed = parse(token.substring(equals + 1));
+                return parsed == null ? 0 : parsed;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Sums every numeric pair ahead of the first percentile section of each
+     * reply, keeping the order names first appear in
+     */
+    public static String sum(List<String> replies) {
+        Map<String, Double> totals = new LinkedHashMap<>();
+        Map<String, Boolean> rates = new LinkedHashMap<>();
+
+        for (String reply : replies) {
+            for (String token : reply.split(" ")) {
+                int equals = token.indexOf('=');
+                if (equals == -1) {
+                    // a histogram name; only percentiles follow
+                    break;
+                }
+
+                String value = token.substring(equals + 1);
+                Double parsed = parse(value);
+                if (parsed != null) {
+                    String name = token.substring(0, equals);
+                    totals.merge(name, parsed, Double::sum);
+                    rates.put(name, value.endsWith(RATE_SUFFIX));
+                }
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Double> total : totals.entrySet()) {
+            out.append(' ').append(total.getKey()).append('=');
+
+            if (rates.get(total.getKey())) {
+                out.append(String.format("%.1f", total.getValue())).append(RATE_SUFFIX);
+            } else {
+                out.append(Math.round(total.getValue()));
+            }
+        }
+
+        return out.toString().trim();
+    }
+
+    private static Double parse(String value) {
+        if (value.endsWith(RATE_SUFFIX)) {
+            value = value.substring(0, value.length() - RATE_SUFFIX.length());
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * A request decoded from a binary frame: an operation on two 64-bit
+ * operands, tagged with the client's request id so the reply can be matched
+ * up with it. {@link #evaluate()} fills in the status and result.
+ */
+public class Command {
+    // operations
+    public static final byte ADD = 1;
+    public static final byte SUB = 2;
+    public static final byte MUL = 3;
+    public static final byte DIV = 4;
+    public static final byte KILL = 5;
+    // text protocol only
+    public static final byte STATS = 6;
+    // many operations at once, see Batch
+    public static final byte BATCH = 7;
+
+    // flag bits
+    public static final byte NO_CACHE = 1;
+    // the header is followed by a timeout, see BinaryProtocol
+    public static final byte HAS_TIMEOUT = 2;
+
+    // reply statuses
+    public static final byte OK = 0;
+    public static final byte UNKNOWN_COMMAND = 1;
+    public static final byte DIVIDE_BY_ZERO = 2;
+    public static final byte BUSY = 3;
+    // malformed or missing operands (text commands only)
+    public static final byte BAD_ARGUMENT = 4;
+    // turned away by admission control; the result is a retry-after hint in ms
+    public static final byte OVERLOADED = 5;
+    // the client is over its rate limit; the result is a retry-after hint in ms
+    public static final byte RATE_LIMITED = 6;
+    // waited in the queue past its deadline; the result is how long it waited in ms
+    public static final byte TIMED_OUT = 7;
+
+    private final byte op;
+    private final byte flags;
+    private final int requestId;
+    private final long a, b;
+
+    private byte status;
+    private long result;
+    // the operations of a BATCH request
+    private Batch batch;
+    // ms the client will wait for the reply, or 0 if it didn't say
+    private int timeout;
+
+    Command(byte op, byte flags, int requestId, long a, long b) {
+        this.op = op;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Runs the operation. Arithmetic wraps on overflow, the same as the text
+     * commands do.
+     */
+    public void evaluate() {
+        status = OK;
+        result = 0;
+
+        switch (op) {
+            case ADD:
+                result = a + b;
+                break;
+            case SUB:
+                result = a - b;
+                break;
+            case MUL:
+                result = a * b;
+                break;
+            case DIV:
+                if (b == 0) {
+                    status = DIVIDE_BY_ZERO;
+                } else {
+                    result = a / b;
+                }
+                break;
+            case KILL:
+                ThreadManager.requestKill();
+                break;
+            case BATCH:
+                batch.evaluate();
+                result = batch.size();
+                break;
+            default:
+                status = UNKNOWN_COMMAND;
+        }
+    }
+
+    public byte getOp() {
+        return op;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * Whether the request is arithmetic the result cache may answer
+     */
+    public boolean isCacheable() {
+        return (flags & NO_CACHE) == 0 && op >= ADD && op <= DIV;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public long getA() {
+        return a;
+    }
+
+    public long getB() {
+        return b;
+    }
+
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+
+    public boolean hasTimeout() {
+        return (flags & HAS_TIMEOUT) != 0;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public long getResult() {
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "op " + op + " (" + a + ", " + b + ") request " + requestId;
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keys onto nodes. Each node is placed on a ring of
+ * hash values at many points (virtual nodes) and a key belongs to the first
+ * node at or after its own hash. Adding or removing a node only moves the
+ * keys next to that node's points; every other key stays where it was.
+ *
+ * A ring is never changed once built; the coordinator builds a new one when
+ * the set of healthy nodes changes.
+ */
+public class HashRing {
+    private static final int VIRTUAL_NODES = 100;
+
+    private final TreeMap<Integer, ClusterNode> ring = new TreeMap<>();
+
+    HashRing(Collection<ClusterNode> nodes) {
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(mix((node + "#" + i).hashCode()), node);
+            }
+        }
+    }
+
+    /**
+     * The node {key} belongs to, or null if the ring is empty
+     */
+    public ClusterNode nodeFor(int key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Integer, ClusterNode> entry = ring.ceilingEntry(mix(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /**
+     * MurmurHash3's finalizer, so neighbouring keys land far apart
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+}
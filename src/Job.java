@@ -1,76 +1,533 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Lander Brandt on 2/18/16.
  */
 public class Job implements Runnable {
-    private Socket socket;
+    // lanes for PriorityLaneQueue
+    public static final int CONTROL_LANE = PriorityLaneQueue.CONTROL_LANE;
+    public static final int INTERACTIVE_LANE = 1;
+    public static final int BULK_LANE = 2;
+
+    // answers repeated arithmetic without queueing it; null when turned off
+    private static volatile ResultCache cache;
+    // sheds load when jobs queue too long; null when turned off
+    private static volatile AdmissionController admission;
+    // records jobs until they reply so they survive a restart; null when turned off
+    private static volatile JobJournal journal;
+    // answers jobs left queued past their deadline; null to only check at dequeue
+    private static volatile TimingWheel timers;
+    // deadline in ms for jobs whose client didn't give one, or 0 for none
+    private static volatile int defaultTimeout;
+
+    private static final String BUSY_MESSAGE = "Server is too busy to handle request right now, please try again later";
+    private static final String TIMEOUT_MESSAGE = "Request timed out waiting to run, please try again later";
+
+    private Responder responder;
     private int client;
     private String command;
-    private PrintWriter output;
+    // set instead of command for jobs read off a binary connection
+    private Command request;
+    // the queue the job went on, and why it was turned away if it was
+    private SharedQueue<Job> queue;
+    private byte rejection = Command.OK;
+    // the job's journal entry, or -1 if it has none
+    private long journalId = -1;
+    // ms from acceptedAt the client will wait for the reply, or 0 for no deadline
+    private int timeout;
+    private volatile TimingWheel.Timer timer;
+    // taken by whichever gets to the job first: the worker that dequeues it,
+    // or its timer expiring it
+    private final AtomicBoolean claimed = new AtomicBoolean();
 
-    Job(PrintWriter output, Socket socket, int client, String command) {
-        this.socket = socket;
+    // System.nanoTime() at each step of the job's life, for Metrics
+    private final long acceptedAt;
+    private long enqueuedAt;
+    private long dequeuedAt;
+    private long startedAt;
+    private long repliedAt;
+
+    Job(Responder responder, int client, String command) {
+        this.responder = responder;
         this.client = client;
         this.command = command;
-        this.output = output;
+        this.acceptedAt = System.nanoTime();
+    }
+
+    /**
+     * Job for a binary request; the reply is a binary frame
+     */
+    Job(Responder responder, int client, Command request) {
+        this(responder, client, (String) null);
+        this.request = request;
+    }
+
+    static void setCache(ResultCache resultCache) {
+        cache = resultCache;
+    }
+
+    static void setAdmission(AdmissionController controller) {
+        admission = controller;
+    }
+
+    static void setJournal(JobJournal jobJournal) {
+        journal = jobJournal;
+    }
+
+    /**
+     * Whether {@link #enqueue} waits for the journal to fsync
+     */
+    static boolean journalSyncs() {
+        JobJournal current = journal;
+        return current != null && current.isSync();
+    }
+
+    /**
+     * @param timingWheel times out jobs still queued at their deadline
+     * @param timeoutMillis deadline for jobs whose client didn't give one, or 0
+     */
+    static void setDeadlines(TimingWheel timingWheel, int timeoutMillis) {
+        timers = timingWheel;
+        defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * Replies to a text command from the result cache if it has been
+     * answered before, so it never reaches the queue. Closes {responder}
+     * like a finished job would.
+     * @return whether the command was answered
+     */
+    static boolean replyFromCache(Responder responder, String command) {
+        ResultCache current = cache;
+        if (current == null) {
+            return false;
+        }
+
+        TextCodec codec = TextCodec.get();
+        codec.parse(command);
+        if (!codec.isCacheable()) {
+            return false;
+        }
+
+        byte[] reply = current.getText(codec.op(), codec.num1(), codec.num2());
+        if (reply == null) {
+            return false;
+        }
+
+        sendCached(responder, reply);
+        return true;
+    }
+
+    /**
+     * {@link #replyFromCache(Responder, String)} for a binary request
+     */
+    static boolean replyFromCache(Responder responder, Command request) {
+        ResultCache current = cache;
+        if (current == null || !request.isCacheable()) {
+            return false;
+        }
+
+        byte[] reply = current.getBinary(request);
+        if (reply == null) {
+            return false;
+        }
+
+        sendCached(responder, BinaryProtocol.withRequestId(reply, request.getRequestId()));
+        return true;
+    }
+
+    private static void sendCached(Responder responder, byte[] reply) {
+        try {
+            responder.reply(reply, 0, reply.length);
+            responder.close();
+        } catch (IOException e) {
+            Log.warn("Result cache", "Error sending reply: ", e);
+        }
+    }
+
+    /**
+     * Puts this job on {queue}, counting it as rejected if the queue is full
+     * or shed if admission control turns it away. Either way the reply to
+     * send is {@link #rejectionLine()} or {@link #rejectionFrame()}. With a
+     * journal, the job is durable in it before it is queued. A job with a
+     * deadline is timed out if it is still queued when the deadline passes.
+     * @return false if the job wasn't queued
+     */
+    public boolean enqueue(SharedQueue<Job> queue) {
+        Metrics.accepted.increment();
+        Metrics.arrivals.mark();
+        enqueuedAt = System.nanoTime();
+        this.queue = queue;
+        timeout = requestedTimeout();
+
+        AdmissionController current = admission;
+        if (current != null && !current.admit(queue.size()) && getLane() != CONTROL_LANE) {
+            Metrics.shed.increment();
+            rejection = Command.OVERLOADED;
+            return false;
+        }
+
+        if (!appendToJournal()) {
+            Metrics.rejected.increment();
+            rejection = Command.BUSY;
+            return false;
+        }
+
+        if (!queue.add(this)) {
+            Metrics.rejected.increment();
+            rejection = Command.BUSY;
+            completeJournal();
+            return false;
+        }
+
+        scheduleTimeout();
+        return true;
+    }
+
+    /**
+     * The client's deadline, or the server's if it didn't give one. KILL and
+     * STATS never time out.
+     */
+    private int requestedTimeout() {
+        if (isControl(command, request)) {
+            return 0;
+        }
+
+        // isControl() has just parsed a text command
+        int requested = request != null ? request.getTimeout() : TextCodec.get().timeout();
+        return requested > 0 ? requested : defaultTimeout;
+    }
+
+    /**
+     * Sets a timer to answer the job with a timeout if it is still queued at
+     * its deadline. A worker that takes the job first cancels it, or if it
+     * gets there before {timer} is set, wins the claim on the job and leaves
+     * the timer to fire on nothing.
+     */
+    private void scheduleTimeout() {
+        TimingWheel current = timers;
+        if (current == null || timeout == 0) {
+            return;
+        }
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptedAt);
+        timer = current.schedule(timeout - waited, this::expire);
+    }
+
+    /**
+     * Run by the timer at the deadline. Only claims and counts the job: the
+     * reply can block on a client that isn't reading, so it is sent from a
+     * thread of its own rather than holding up every other timer.
+     */
+    private void expire() {
+        if (claimed.compareAndSet(false, true)) {
+            markTimedOut();
+            VirtualThreadPool.threadFactory().newThread(this::turnAway).start();
+        }
+    }
+
+    /**
+     * Appends the job to the journal, unless it is KILL or STATS, which
+     * mustn't run again after a restart
+     * @return false if the journal couldn't take it
+     */
+    private boolean appendToJournal() {
+        JobJournal current = journal;
+        if (current == null || getLane() == CONTROL_LANE) {
+            return true;
+        }
+
+        try {
+            byte[] entry = request != null
+                    ? BinaryProtocol.encodeRequest(request)
+                    : command.getBytes(StandardCharsets.US_ASCII);
+            journalId = current.append(client, request != null, entry);
+            return true;
+        } catch (IOException e) {
+            Log.warn(this, "Error journaling job: ", e);
+            return false;
+        }
+    }
+
+    private void completeJournal() {
+        JobJournal current = journal;
+        if (current == null || journalId == -1) {
+            return;
+        }
+
+        try {
+            current.complete(journalId);
+        } catch (IOException e) {
+            Log.warn(this, "Error journaling completion: ", e);
+        }
+    }
+
+    /**
+     * Called by whoever takes the job off the queue. A job past its deadline
+     * is answered with a timeout, and one whose client has gone is
+     * cancelled; either way it must not be run.
+     * @return whether to run the job
+     */
+    public boolean markDequeued() {
+        dequeuedAt = System.nanoTime();
+
+        AdmissionController current = admission;
+        if (current != null) {
+            current.dequeued(dequeuedAt - enqueuedAt, dequeuedAt, queue.size());
+        }
+
+        if (!claimed.compareAndSet(false, true)) {
+            // its timer has already answered it
+            return false;
+        }
+
+        TimingWheel.Timer pending = timer;
+        if (pending != null) {
+            pending.cancel();
+        }
+
+        if (timeout > 0 && dequeuedAt - acceptedAt > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            timeOut();
+            return false;
+        }
+
+        if (!responder.isOpen()) {
+            cancel();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The reply for a text client whose job {@link #enqueue} turned away
+     */
+    String rejectionLine() {
+        if (rejection == Command.OVERLOADED) {
+            return "Server is overloaded, please retry after " + admission.retryAfterMillis() + "ms";
+        }
+        if (rejection == Command.TIMED_OUT) {
+            return TIMEOUT_MESSAGE;
+        }
+
+        return BUSY_MESSAGE;
+    }
+
+    /**
+     * The reply frame for a binary request {@link #enqueue} turned away. The
+     * result is how many milliseconds to wait before retrying, or for one
+     * that timed out, how long it waited.
+     */
+    byte[] rejectionFrame() {
+        long result = 0;
+        if (rejection == Command.OVERLOADED) {
+            result = admission.retryAfterMillis();
+        } else if (rejection == Command.TIMED_OUT) {
+            result = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptedAt);
+        }
+
+        return BinaryProtocol.reply(rejection, request.getRequestId(), result);
+    }
+
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public long getDequeuedAt() {
+        return dequeuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getRepliedAt() {
+        return repliedAt;
+    }
+
+    /**
+     * The number of the client which sent this job
+     */
+    public int getClient() {
+        return client;
+    }
+
+    /**
+     * Where the job goes in a {@link PriorityLaneQueue}: KILL and STATS
+     * ahead of everything, then one-off commands, whose client is waiting on
+     * that single reply, ahead of pipelined and binary streams
+     */
+    public int getLane() {
+        if (isControl(command, request)) {
+            return CONTROL_LANE;
+        }
+
+        return request != null || PipelinedConnection.isSlot(responder) ? BULK_LANE : INTERACTIVE_LANE;
+    }
+
+    /**
+     * Whether a text {command} or binary {request} is KILL or STATS, which
+     * skip the limits put on ordinary commands
+     */
+    static boolean isControl(String command, Command request) {
+        if (request != null) {
+            return request.getOp() == Command.KILL;
+        }
+
+        byte op = TextCodec.get().parse(command);
+        return op == Command.KILL || op == Command.STATS;
     }
 
     @Override
     public void run() {
-        log("Running command " + command);
+        startedAt = System.nanoTime();
+
+        AdmissionController current = admission;
+        if (current != null && current.shouldDrop(dequeuedAt - enqueuedAt) && getLane() != CONTROL_LANE) {
+            drop();
+            return;
+        }
+
+        Log.debug(this, "Running command ", request != null ? request : command);
+
+        try {
+            if (request != null) {
+                request.evaluate();
+                cacheResult();
+
+                byte[] reply = BinaryProtocol.reply(request);
+                responder.reply(reply, 0, reply.length);
+            } else {
+                TextCodec codec = TextCodec.get();
+                cacheResult(codec, evaluate(codec));
+                responder.reply(codec.buffer(), 0, codec.length());
+            }
+        } catch (IOException e) {
+            Log.warn(this, "Error sending reply: ", e);
+        }
 
-        output.println(evaluateCommand());
+        repliedAt = System.nanoTime();
+        Metrics.jobCompleted(this);
+        completeJournal();
 
         try {
-            socket.close();
+            responder.close();
         } catch (IOException e) {
-            log("Error closing socket: " + e.toString());
+            Log.warn(this, "Error closing socket: ", e);
         }
 
-        log("Responded");
+        Log.debug(this, "Responded");
+    }
+
+    /**
+     * Evaluates the text command into {codec}'s reply buffer without
+     * allocating
+     * @return one of the {@link Command} statuses
+     */
+    byte evaluate(TextCodec codec) {
+        byte status = codec.evaluate(command);
+
+        if (status == Command.BAD_ARGUMENT || status == Command.DIVIDE_BY_ZERO) {
+            Log.warn(this, "Error evaluating command: ", command);
+        }
+
+        return status;
+    }
+
+    /**
+     * Tells the client to retry instead of running a job that waited too
+     * long to be worth running
+     */
+    private void drop() {
+        Metrics.shed.increment();
+        rejection = Command.OVERLOADED;
+        Log.debug(this, "Dropped after queueing too long");
+        turnAway();
     }
 
-    private String evaluateCommand() {
-        String[] commandParts = command.split(",");
+    /**
+     * Tells the client its deadline passed before the job could run
+     */
+    private void timeOut() {
+        markTimedOut();
+        turnAway();
+    }
 
-        if (commandParts[0].equals("KILL")) {
-            ThreadManager.killServer = true;
+    private void markTimedOut() {
+        Metrics.expired.increment();
+        rejection = Command.TIMED_OUT;
+        Log.debug(this, "Timed out in the queue, deadline in ms: ", timeout);
+    }
 
-            return "Killing server";
+    /**
+     * Drops the job without a reply, as its client has gone
+     */
+    private void cancel() {
+        Metrics.cancelled.increment();
+        Log.debug(this, "Cancelled, the client has gone");
+        completeJournal();
+
+        try {
+            responder.close();
+        } catch (IOException e) {
+            Log.warn(this, "Error closing socket: ", e);
         }
+    }
+
+    /**
+     * Sends the rejection reply in place of running the job
+     */
+    private void turnAway() {
+        completeJournal();
 
         try {
-            int num1 = Integer.parseInt(commandParts[1]), num2 = Integer.parseInt(commandParts[2]);
-
-            switch (commandParts[0]) {
-                case "ADD":
-                    return String.format("%d + %d = %d", num1, num2, num1 + num2);
-                case "SUB":
-                    return String.format("%d - %d = %d", num1, num2, num1 - num2);
-                case "DIV":
-                    return String.format("%d / %d = %d", num1, num2, num1 / num2);
-                case "MUL":
-                    return String.format("%d * %d = %d", num1, num2, num1 * num2);
+            if (request != null) {
+                byte[] frame = rejectionFrame();
+                responder.reply(frame, 0, frame.length);
+            } else {
+                responder.send(rejectionLine());
             }
-        } catch (Exception e) {
-            log("Error: " + e);
+            responder.close();
+        } catch (IOException e) {
+            Log.warn(this, "Error sending reply: ", e);
+        }
+    }
+
+    private void cacheResult() {
+        ResultCache current = cache;
 
-            return "Error occurred when executing command: " + command;
+        if (current != null && request.isCacheable() && request.getStatus() == Command.OK) {
+            current.putBinary(request);
         }
+    }
+
+    private void cacheResult(TextCodec codec, byte status) {
+        ResultCache current = cache;
 
-        return "Unknown command " + command;
+        if (current != null && status == Command.OK && codec.isCacheable()) {
+            current.putText(codec.op(), codec.num1(), codec.num2(), codec.buffer(), 0, codec.length());
+        }
     }
 
-    private void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
+    /**
+     * The reply line for the text command, without its newline
+     */
+    String evaluateCommand() {
+        TextCodec codec = TextCodec.get();
+        evaluate(codec);
+
+        return new String(codec.buffer(), 0, codec.length() - 1, StandardCharsets.US_ASCII);
+    }
 
-        System.out.printf("[Job for client %d] %s at %s\n", client, message, dt.format(new Date()));
+    @Override
+    public String toString() {
+        return "Job for client " + client;
     }
 }
@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of accepted jobs, so a crash or KILL doesn't lose what was
+ * queued. A job is appended before it goes on the queue and a completion
+ * marker is appended once it has replied; on startup, entries without a
+ * marker are handed back to be queued again. A job may therefore run twice
+ * if the server dies between replying and its marker reaching the log, which
+ * is harmless for arithmetic.
+ *
+ * The log is a directory of fixed size segment files, each memory-mapped, so
+ * appending is a copy into the page cache under a short lock and survives
+ * the process dying straight away. Surviving the machine dying takes an
+ * fsync; rather than one per job, {@link #append} waits for a group commit:
+ * the first waiter forces everything written so far and every other job
+ * appended in the meantime is made durable by that same force. Without
+ * {sync} nothing is forced and a job is as durable as the page cache, which
+ * is enough for the server crashing or being killed but not the machine.
+ *
+ * Records are
+ *
+ *   length (4), CRC32C of the rest (4), type (1), id (8), [client (4), job]
+ *
+ * where the job is the text command or the binary request frame. A segment
+ * ends at its first zeroed or torn record. Full segments are deleted oldest
+ * first once every job in them has completed; deleting them in order means a
+ * completion marker is never lost while the entry it completes is kept.
+ */
+public class JobJournal {
+    private static final byte TEXT = 1;
+    private static final byte BINARY = 2;
+    private static final byte DONE = 3;
+
+    private static final int HEADER_SIZE = 17;
+    private static final int ENTRY_HEADER_SIZE = HEADER_SIZE + 4;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    // whether append waits for a group commit
+    private final boolean sync;
+
+    // guarded by this
+    private Segment current;
+    // oldest first; the last is current
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextId;
+    private int nextSegment;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durable;
+    private boolean syncing;
+    private long syncs;
+
+    // entries found without a completion marker when the journal was opened
+    private final List<Recovered> recovered = new ArrayList<>();
+    private final List<Path> oldSegments = new ArrayList<>();
+
+    /**
+     * Opens the journal in {directory}, reading back whatever an earlier run
+     * left unfinished (see {@link #recovered()})
+     */
+    JobJournal(Path directory, int segmentSize, boolean sync) throws IOException {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("Journal segments must be at least 64KB");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        Files.createDirectories(directory);
+
+        recover();
+        rotate();
+    }
+
+    /**
+     * Records {job} and, with sync on, waits until it is durable
+     * @param binary whether {job} is a binary request frame rather than a text command
+     * @return the id to pass to {@link #complete}
+     */
+    public long append(int client, boolean binary, byte[] job) throws IOException {
+        byte[] record = new byte[ENTRY_HEADER_SIZE + job.length];
+        if (record.length > segmentSize) {
+            throw new IOException("Job too large for a journal segment: " + job.length + " bytes");
+        }
+
+        ByteBuffer.wrap(record, HEADER_SIZE, 4).putInt(client);
+        System.arraycopy(job, 0, record, ENTRY_HEADER_SIZE, job.length);
+
+        long id;
+        long end;
+        synchronized (this) {
+            // rotate before taking the id, so the segment the entry lands in
+            // is the one complete() finds by its first id
+            if (current.position + record.length > segmentSize) {
+                rotate();
+            }
+
+            id = nextId++;
+            end = write(record, binary ? BINARY : TEXT, id);
+            current.live++;
+        }
+
+        if (sync) {
+            commit(end);
+        }
+        return id;
+    }
+
+    /**
+     * Marks the job {id} as done. This doesn't wait for the marker to be
+     * durable; if it is lost the job is run again on recovery.
+     */
+    public synchronized void complete(long id) throws IOException {
+        write(new byte[HEADER_SIZE], DONE, id);
+
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+
+            if (segment.firstId <= id) {
+                segment.live--;
+                break;
+            }
+        }
+
+        trim();
+    }
+
+    /**
+     * Jobs an earlier run accepted and never finished, oldest first. Once
+     * they have been queued again (and so journaled again), call
+     * {@link #discardRecovered()}.
+     */
+    public List<Recovered> recovered() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * Deletes the segments the recovered jobs were read from
+     */
+    public void discardRecovered() throws IOException {
+        for (Path path : oldSegments) {
+            Files.deleteIfExists(path);
+        }
+
+        oldSegments.clear();
+        recovered.clear();
+    }
+
+    /**
+     * Jobs appended and not yet completed
+     */
+    public synchronized long live() {
+        long live = 0;
+        for (Segment segment : segments) {
+            live += segment.live;
+        }
+
+        return live;
+    }
+
+    /**
+     * Whether {@link #append} waits for a group commit
+     */
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * How many times the log has been forced to disk
+     */
+    public long syncs() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    /**
+     * Stamps {record}'s header, copies it into the current segment and
+     * returns the position just past it. Caller holds the lock.
+     */
+    private long write(byte[] record, byte type, long id) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(0, record.length);
+        header.put(8, type);
+        header.putLong(9, id);
+
+        CRC32C crc = new CRC32C();
+        crc.update(record, 8, record.length - 8);
+        header.putInt(4, (int) crc.getValue());
+
+        if (current.position + record.length > segmentSize) {
+            rotate();
+        }
+
+        current.buffer.put(current.position, record);
+        current.position += record.length;
+
+        return current.base + current.position;
+    }
+
+    /**
+     * Waits until everything up to {position} has been forced, forcing it
+     * ourselves if no one else is
+     */
+    private void commit(long position) throws IOException {
+        synchronized (syncLock) {
+            while (durable < position && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the journal to sync");
+                }
+            }
+
+            if (durable >= position) {
+                return;
+            }
+
+            syncing = true;
+        }
+
+        long forced = durable;
+        try {
+            // let appenders that are ready to run get into this sync
+            Thread.yield();
+
+            Segment segment;
+            int end;
+            synchronized (this) {
+                segment = current;
+                end = segment.position;
+            }
+
+            // everything before this segment was forced when it filled up
+            segment.buffer.force(segment.forced, end - segment.forced);
+            segment.forced = end;
+            forced = segment.base + end;
+        } finally {
+            synchronized (syncLock) {
+                durable = Math.max(durable, forced);
+                syncing = false;
+                syncs++;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces the current segment and starts a new one. Caller holds the
+     * lock, or is the constructor.
+     */
+    private void rotate() throws IOException {
+        long base = 0;
+        if (current != null) {
+            current.buffer.force();
+            current.forced = current.position;
+            base = current.base + segmentSize;
+        }
+
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, nextSegment++, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            current = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), base, nextId);
+        }
+
+        segments.add(current);
+        trim();
+    }
+
+    /**
+     * Deletes full segments from the oldest up to the first with a job still
+     * running. Caller holds the lock.
+     */
+    private void trim() throws IOException {
+        while (segments.size() > 1 && segments.get(0).live == 0) {
+            Files.deleteIfExists(segments.remove(0).path);
+        }
+    }
+
+    /**
+     * Reads every existing segment in order, keeping entries that never got
+     * a completion marker
+     */
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+
+        Map<Long, Recovered> unfinished = new LinkedHashMap<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            nextSegment = Math.max(nextSegment, 1 + Integer.parseInt(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+
+            ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(path));
+            CRC32C crc = new CRC32C();
+
+            while (segment.remaining() >= HEADER_SIZE) {
+                int start = segment.position();
+                int length = segment.getInt(start);
+                if (length < HEADER_SIZE || length > segment.remaining()) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(segment.array(), start + 8, length - 8);
+                if ((int) crc.getValue() != segment.getInt(start + 4)) {
+                    Log.warn("JobJournal", "Torn record in " + name + " at ", start);
+                    break;
+                }
+
+                byte type = segment.get(start + 8);
+                long id = segment.getLong(start + 9);
+                nextId = Math.max(nextId, id + 1);
+
+                if (type == DONE) {
+                    unfinished.remove(id);
+                } else if (length >= ENTRY_HEADER_SIZE) {
+                    int client = segment.getInt(start + HEADER_SIZE);
+                    byte[] job = new byte[length - ENTRY_HEADER_SIZE];
+                    System.arraycopy(segment.array(), start + ENTRY_HEADER_SIZE, job, 0, job.length);
+
+                    unfinished.put(id, new Recovered(client, type == BINARY, job));
+                }
+
+                segment.position(start + length);
+            }
+
+            oldSegments.add(path);
+        }
+
+        recovered.addAll(unfinished.values());
+        if (!paths.isEmpty()) {
+            Log.info("JobJournal", "Recovered unfinished jobs: ", recovered.size());
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        // logical position of the segment's first byte
+        final long base;
+        // id of the first job appended here
+        final long firstId;
+        int position;
+        // written up to here when last forced
+        int forced;
+        // jobs appended here and not yet completed
+        int live;
+
+        Segment(Path path, MappedByteBuffer buffer, long base, long firstId) {
+            this.path = path;
+            this.buffer = buffer;
+            this.base = base;
+            this.firstId = firstId;
+        }
+    }
+
+    /**
+     * A job read back from the journal
+     */
+    public static class Recovered {
+        private final int client;
+        private final boolean binary;
+        private final byte[] job;
+
+        Recovered(int client, boolean binary, byte[] job) {
+            this.client = client;
+            this.binary = binary;
+            this.job = job;
+        }
+
+        /**
+         * A job to queue again. The client that sent it is long gone, so its
+         * reply is only logged.
+         */
+        public Job toJob() {
+            if (!binary) {
+                return new Job(new ReplayResponder(false), client, new String(job, StandardCharsets.US_ASCII));
+            }
+
+            Command request = BinaryProtocol.decodeRequest(job, 0);
+            if (BinaryProtocol.bodyLength(request) > 0) {
+                BinaryProtocol.decodeBody(request, job, BinaryProtocol.REQUEST_SIZE);
+            }
+
+            return new Job(new ReplayResponder(true), client, request);
+        }
+    }
+
+    /**
+     * Logs the reply of a recovered job
+     */
+    private static class ReplayResponder implements Responder {
+        private final boolean binary;
+
+        ReplayResponder(boolean binary) {
+            this.binary = binary;
+        }
+
+        @Override
+        public void reply(byte[] data, int offset, int length) {
+            if (binary) {
+                Log.info("JobJournal", "Recovered job replied with status ", data[offset]);
+            } else {
+                Log.info("JobJournal", "Recovered job replied: ",
+                        new String(data, offset, length, StandardCharsets.US_ASCII).trim());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Runs the jobs taken off the queue with a number of "active workers" that
+ * the {@link ThreadManager} grows and shrinks. {@link ThreadPool} keeps that
+ * many platform threads; {@link VirtualThreadPool} treats it as a limit on
+ * jobs running at once.
+ */
+public interface JobPool {
+    /**
+     * The most active workers the pool can have
+     */
+    int capacity();
+
+    /**
+     * Grows the number of active workers to {count}
+     */
+    void growActiveWorkers(int count);
+
+    /**
+     * Grows or shrinks the number of active workers to {count}, capped at
+     * the capacity
+     */
+    void setNumActiveWorkers(int count);
+
+    int activeWorkers();
+
+    /**
+     * Stops the pool from growing/shrinking and running new jobs
+     */
+    void stop();
+
+    boolean isStopped();
+
+    /**
+     * Waits for the jobs still running after {@link #stop} to finish
+     */
+    void join();
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the pool so jobs spend no longer than a target time in the queue.
+ *
+ * Once a second it measures the arrival rate and how much worker time each
+ * job takes. By Little's law the pool needs arrivalRate * serviceTime busy
+ * workers just to keep up, so it asks for that at a utilization below 100%
+ * plus enough extra to work off the current backlog within the target wait.
+ *
+ * Growing happens as soon as the target is above the current size.
+ * Shrinking waits until the target is clearly below it (the hysteresis band)
+ * and the cooldown since the last resize has passed, so the pool settles at
+ * a size instead of oscillating around it.
+ */
+public class LatencyTargetPolicy implements ScalingPolicy {
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    // weight of the newest window in the smoothed estimates
+    private static final double SMOOTHING = 0.3;
+    private static final double UTILIZATION = 0.8;
+    // shrink only when the target is this fraction below the current size
+    private static final double HYSTERESIS = 0.2;
+
+    private final long targetWaitMicros;
+    private final int minWorkers;
+    private final long cooldownNanos;
+
+    // smoothed estimates, both 0 until the first window closes
+    private double arrivalRate;
+    private double serviceMicros;
+
+    private long lastPoll = System.nanoTime();
+    private long lastResize = lastPoll;
+    private long windowStart = lastPoll;
+    private long windowAccepted = Metrics.accepted.sum();
+    private long windowCompleted = Metrics.completed.sum();
+    private double windowWorkerNanos;
+    // whether the queue had jobs waiting at every poll in the window
+    private boolean windowSaturated = true;
+
+    private String reason = "";
+
+    /**
+     * @param targetWaitMillis how long a job may wait in the queue
+     * @param cooldownMillis least time between a resize and the next shrink
+     */
+    LatencyTargetPolicy(int targetWaitMillis, int minWorkers, int cooldownMillis) {
+        if (targetWaitMillis < 1) {
+            throw new IllegalArgumentException("targetWaitMillis < 1");
+        }
+
+        this.targetWaitMicros = TimeUnit.MILLISECONDS.toMicros(targetWaitMillis);
+        this.minWorkers = minWorkers;
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+    }
+
+    @Override
+    public int targetWorkers(int jobs, int activeWorkers, int capacity) {
+        long now = System.nanoTime();
+
+        windowWorkerNanos += (double) activeWorkers * (now - lastPoll);
+        windowSaturated &= jobs > 0;
+        lastPoll = now;
+
+        if (now - windowStart >= WINDOW) {
+            closeWindow(now);
+        }
+
+        if (serviceMicros == 0) {
+            // the pool hasn't been busy yet, so there's nothing to go on
+            return activeWorkers;
+        }
+
+        double busyWorkers = arrivalRate * serviceMicros / 1e6;
+        double backlogWorkers = jobs * serviceMicros / targetWaitMicros;
+        int target = (int) Math.ceil(busyWorkers / UTILIZATION + backlogWorkers);
+        target = Math.max(minWorkers, Math.min(capacity, target));
+
+        String estimate = String.format("%.1f jobs/s at %.1fms each, %d queued", arrivalRate, serviceMicros / 1000, jobs);
+
+        if (target > activeWorkers) {
+            reason = "growing workers to " + target + " for " + estimate;
+        } else if (target < activeWorkers * (1 - HYSTERESIS) && now - lastResize >= cooldownNanos) {
+            reason = "shrinking workers to " + target + " for " + estimate;
+        } else {
+            return activeWorkers;
+        }
+
+        lastResize = now;
+        return target;
+    }
+
+    /**
+     * Folds the window that just ended into the smoothed estimates
+     */
+    private void closeWindow(long now) {
+        long accepted = Metrics.accepted.sum();
+        long completed = Metrics.completed.sum();
+        long completedInWindow = completed - windowCompleted;
+
+        double rate = (accepted - windowAccepted) * 1e9 / (now - windowStart);
+        arrivalRate = arrivalRate == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * arrivalRate;
+
+        if (completedInWindow > 0) {
+            // worker time per completed job. It's only the true service time
+            // when no worker sat idle, otherwise it's an upper bound
+            double perJob = windowWorkerNanos / completedInWindow / 1000;
+
+            if (windowSaturated) {
+                serviceMicros = serviceMicros == 0 ? perJob : SMOOTHING * perJob + (1 - SMOOTHING) * serviceMicros;
+            } else if (serviceMicros > 0) {
+                serviceMicros = Math.min(serviceMicros, perJob);
+            }
+        }
+
+        windowStart = now;
+        windowAccepted = accepted;
+        windowCompleted = completed;
+        windowWorkerNanos = 0;
+        windowSaturated = true;
+    }
+
+    @Override
+    public String reason() {
+        return reason;
+    }
+
+    /**
+     * A backlog as long as the smallest pool; anything queued behind that is
+     * already waiting a whole service time
+     */
+    @Override
+    public int highWatermark() {
+        return Math.max(1, minWorkers);
+    }
+
+    @Override
+    public int lowWatermark() {
+        return 0;
+    }
+}
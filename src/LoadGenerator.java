@@ -0,0 +1,528 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the server with either a fixed request rate (open loop) or a fixed
+ * number of clients that each wait for a reply before sending their next
+ * command (closed loop), then prints throughput, error counts and latency
+ * percentiles for the run.
+ *
+ * In open loop mode latency is measured from the time a command was
+ * scheduled to go out rather than the time it actually did, so when the
+ * server stalls the commands stuck behind the stall are charged for it
+ * instead of silently being sent late (coordinated omission). The plain
+ * send-to-reply time is reported next to it.
+ *
+ * Only commands that got a proper result count towards the latencies.
+ */
+public class LoadGenerator {
+    private static final String BUSY_REPLY = "Server is too busy";
+    private static final String OVERLOADED_REPLY = "Server is overloaded";
+    private static final String RATE_LIMITED_REPLY = "Rate limit exceeded";
+    private static final String TIMED_OUT_REPLY = "Request timed out";
+
+    // how a command turned out
+    private static final int REPLIED_OK = 0;
+    private static final int REPLIED_BUSY = 1;
+    private static final int REPLIED_ERROR = 2;
+    private static final int NO_REPLY = 3;
+    private static final int REPLIED_TIMED_OUT = 4;
+
+    private final String host;
+    private final int port;
+    // connections are spread over this many consecutive ports from port
+    private final int ports;
+    private final boolean openLoop;
+    private final int rate;
+    private final int concurrency;
+    private final long durationNanos;
+    private final int timeout;
+    // sent with each command for the server to time it out by, or 0 for none
+    private final int commandDeadline;
+    private final boolean reuse;
+    private final boolean binary;
+    private final CommandMix mix;
+    private final String csvPath;
+
+    // in open loop mode this includes the time spent behind schedule
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    // latencies for the current second of the CSV time series
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+
+    // index of the next open loop command to be sent
+    private final AtomicLong nextSend = new AtomicLong();
+    private long startedAt;
+    private long deadline;
+
+    LoadGenerator(ServerOptions options) {
+        this.host = options.getString("host", "localhost");
+        this.port = options.getInt("port", 9898);
+        this.ports = Math.max(1, options.getInt("ports", 1));
+        this.openLoop = options.getString("mode", "closed").equals("open");
+        this.rate = options.getInt("rate", 1000);
+        this.concurrency = options.getInt("concurrency", openLoop ? 50 : 10);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        this.timeout = options.getInt("timeout", 10000);
+        this.commandDeadline = options.getInt("deadline", 0);
+        this.reuse = options.getBoolean("reuse", false);
+        this.binary = options.getBoolean("binary", false);
+        this.mix = new CommandMix(options.getString("mix", "ADD:1,SUB:1,MUL:1,DIV:1"),
+                options.getString("operands", "uniform"), options.getInt("max-operand", 1000));
+        this.csvPath = options.getString("csv", "");
+
+        if (rate < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("--rate and --concurrency must be at least 1");
+        }
+    }
+
+    /**
+     * Runs the load for the configured duration and prints the report
+     */
+    public void run() throws IOException {
+        log(describe());
+
+        PrintWriter csv = null;
+        if (!csvPath.isEmpty()) {
+            csv = new PrintWriter(new FileWriter(csvPath));
+            csv.println("second,sent,ok,busy,errors,p50_ms,p99_ms,max_ms");
+        }
+
+        startedAt = System.nanoTime();
+        deadline = startedAt + durationNanos;
+
+        Thread[] clients = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            clients[i] = new Thread(openLoop ? this::sendScheduled : this::sendClosed, "Load client " + i);
+            clients[i].start();
+        }
+
+        // report once a second until the run is over
+        long[] previous = new long[4];
+        for (int second = 1; System.nanoTime() < deadline; second++) {
+            LockSupport.parkNanos(Math.min(startedAt + TimeUnit.SECONDS.toNanos(second), deadline) - System.nanoTime());
+
+            LatencyHistogram.Snapshot snapshot = interval.getAndSet(new LatencyHistogram()).snapshot();
+            long[] totals = {sent.sum(), ok.sum(), busy.sum(), errors.sum()};
+
+            if (csv != null) {
+                csv.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%.3f,%.3f,%.3f%n", second,
+                        totals[0] - previous[0], totals[1] - previous[1],
+                        totals[2] - previous[2], totals[3] - previous[3],
+                        millis(snapshot.percentile(0.5)), millis(snapshot.percentile(0.99)), millis(snapshot.max()));
+            }
+
+            previous = totals;
+        }
+
+        for (Thread client : clients) {
+            try {
+                client.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        if (csv != null) {
+            csv.close();
+        }
+
+        System.out.print(report((System.nanoTime() - startedAt) / 1e9));
+    }
+
+    /**
+     * Closed loop: send, wait for the reply, repeat
+     */
+    private void sendClosed() {
+        Client client = new Client();
+
+        while (System.nanoTime() < deadline) {
+            long now = System.nanoTime();
+            client.execute(mix.next(ThreadLocalRandom.current()), now, now);
+        }
+
+        client.close();
+    }
+
+    /**
+     * Open loop: commands are due every 1/rate seconds from the start of the
+     * run and each client picks up the next one that is due. If every client
+     * is waiting on a reply the schedule keeps moving and the next command
+     * goes out late, with the delay counted in its latency.
+     */
+    private void sendScheduled() {
+        Client client = new Client();
+        double interval = 1e9 / rate;
+
+        while (true) {
+            long scheduledAt = startedAt + (long) (nextSend.getAndIncrement() * interval);
+            if (scheduledAt >= deadline) {
+                break;
+            }
+
+            long wait;
+            while ((wait = scheduledAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            client.execute(mix.next(ThreadLocalRandom.current()), scheduledAt, System.nanoTime());
+        }
+
+        client.close();
+    }
+
+    private String describe() {
+        return String.format("%s for %ds against %s:%d, %d clients, %s, %s protocol, mix %s",
+                openLoop ? "Open loop at " + rate + " commands/s" : "Closed loop",
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), host, port, concurrency,
+                reuse ? "reusing connections" : "one connection per command", binary ? "binary" : "text", mix);
+    }
+
+    String report(double seconds) {
+        StringBuilder out = new StringBuilder(512);
+        Formatter format = new Formatter(out);
+
+        format.line(describe());
+        format.line("Elapsed:     %.2f s, %d connections opened", seconds, connects.sum());
+        format.line("Commands:    %d sent, %d ok, %d too busy, %d timed out, %d errors",
+                sent.sum(), ok.sum(), busy.sum(), timedOut.sum(), errors.sum());
+        format.line("Throughput:  %.1f ok/s (%.1f sent/s)", ok.sum() / seconds, sent.sum() / seconds);
+        format.line("%-12s %9s %9s %9s %9s %9s %9s", "Latency ms", "mean", "p50", "p90", "p99", "p99.9", "max");
+        percentiles(format, openLoop ? "corrected" : "all", latency.snapshot());
+
+        if (openLoop) {
+            percentiles(format, "uncorrected", serviceTime.snapshot());
+        }
+
+        return out.toString();
+    }
+
+    private static void percentiles(Formatter format, String name, LatencyHistogram.Snapshot snapshot) {
+        format.line("%-12s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", name,
+                snapshot.mean() / 1000, millis(snapshot.percentile(0.5)), millis(snapshot.percentile(0.9)),
+                millis(snapshot.percentile(0.99)), millis(snapshot.percentile(0.999)), millis(snapshot.max()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private void log(String message) {
+        Log.info("LoadGenerator", message);
+    }
+
+    /**
+     * String.format onto a builder, one line at a time
+     */
+    private static class Formatter {
+        private final StringBuilder out;
+
+        Formatter(StringBuilder out) {
+            this.out = out;
+        }
+
+        void line(String format, Object... args) {
+            out.append(String.format(Locale.ROOT, format, args)).append('\n');
+        }
+    }
+
+    /**
+     * One client's connection to the server. Without connection reuse every
+     * command gets a fresh connection, which is what the server expects
+     * unless it runs with --keepalive.
+     */
+    private class Client {
+        private Socket socket;
+        private BufferedReader in;
+        private DataInputStream binaryIn;
+        private OutputStream out;
+        private final byte[] request = new byte[BinaryProtocol.REQUEST_SIZE + BinaryProtocol.TIMEOUT_SIZE];
+        private final byte[] reply = new byte[BinaryProtocol.REPLY_SIZE];
+        private int nextRequestId = 0;
+
+        void execute(String command, long scheduledAt, long sentAt) {
+            sent.increment();
+
+            int outcome;
+            try {
+                if (socket == null) {
+                    connect();
+                }
+
+                outcome = binary ? sendBinary(command) : sendText(command);
+            } catch (IOException e) {
+                Log.debug(Thread.currentThread().getName(), "Error: ", e);
+                outcome = NO_REPLY;
+            }
+
+            long repliedAt = System.nanoTime();
+
+            switch (outcome) {
+                case REPLIED_OK:
+                    ok.increment();
+
+                    long micros = micros(repliedAt - scheduledAt);
+                    latency.record(micros);
+                    interval.get().record(micros);
+                    serviceTime.record(micros(repliedAt - sentAt));
+                    break;
+                case REPLIED_BUSY:
+                    busy.increment();
+
+                    if (!binary) {
+                        // the server drops text connections after turning a client away
+                        close();
+                        return;
+                    }
+                    break;
+                case REPLIED_ERROR:
+                    errors.increment();
+                    break;
+                case REPLIED_TIMED_OUT:
+                    timedOut.increment();
+                    break;
+                default:
+                    errors.increment();
+                    close();
+                    return;
+            }
+
+            if (!reuse) {
+                close();
+            }
+        }
+
+        private int sendText(String command) throws IOException {
+            if (commandDeadline > 0) {
+                command += ",timeout=" + commandDeadline;
+            }
+            out.write((command + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            String line = in.readLine();
+
+            if (line == null) {
+                return NO_REPLY;
+            }
+            if (line.startsWith(BUSY_REPLY) || line.startsWith(OVERLOADED_REPLY) || line.startsWith(RATE_LIMITED_REPLY)) {
+                return REPLIED_BUSY;
+            }
+            if (line.startsWith(TIMED_OUT_REPLY)) {
+                return REPLIED_TIMED_OUT;
+            }
+            if (line.startsWith("Error") || line.startsWith("Unknown") || line.startsWith("Command too long")) {
+                return REPLIED_ERROR;
+            }
+
+            return REPLIED_OK;
+        }
+
+        private int sendBinary(String command) throws IOException {
+            String[] parts = command.split(",");
+            byte op;
+
+            switch (parts[0]) {
+                case "ADD":
+                    op = Command.ADD;
+                    break;
+                case "SUB":
+                    op = Command.SUB;
+                    break;
+                case "MUL":
+                    op = Command.MUL;
+                    break;
+                case "DIV":
+                    op = Command.DIV;
+                    break;
+                default:
+                    // let the server say it doesn't know it
+                    op = 0;
+            }
+
+            int requestId = nextRequestId++;
+            byte flags = commandDeadline > 0 ? Command.HAS_TIMEOUT : 0;
+            BinaryProtocol.encodeRequest(op, flags, requestId, Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                    request, 0);
+            int length = BinaryProtocol.REQUEST_SIZE;
+            if (commandDeadline > 0) {
+                ByteBuffer.wrap(request).putInt(length, commandDeadline);
+                length += BinaryProtocol.TIMEOUT_SIZE;
+            }
+            out.write(request, 0, length);
+            out.flush();
+
+            binaryIn.readFully(reply);
+
+            int repliedTo = ByteBuffer.wrap(reply).getInt(1);
+            if (repliedTo != requestId) {
+                throw new IOException("Reply for request " + repliedTo + ", expected " + requestId);
+            }
+
+            switch (reply[0]) {
+                case Command.OK:
+                    return REPLIED_OK;
+                case Command.BUSY:
+                case Command.OVERLOADED:
+                case Command.RATE_LIMITED:
+                    return REPLIED_BUSY;
+                case Command.TIMED_OUT:
+                    return REPLIED_TIMED_OUT;
+                default:
+                    return REPLIED_ERROR;
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket(host, port + ThreadLocalRandom.current().nextInt(ports));
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            connects.increment();
+
+            out = socket.getOutputStream();
+
+            if (binary) {
+                binaryIn = new DataInputStream(socket.getInputStream());
+                out.write(BinaryProtocol.MAGIC);
+                return;
+            }
+
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+            // skip the welcome message
+            if (in.readLine() == null) {
+                throw new IOException("Connection closed before the welcome message");
+            }
+        }
+
+        void close() {
+            if (socket == null) {
+                return;
+            }
+
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+
+            socket = null;
+        }
+    }
+
+    /**
+     * Weighted choice of operation plus an operand distribution, e.g. a mix
+     * of "ADD:4,DIV:1" sends four ADDs for every DIV
+     */
+    static class CommandMix {
+        private final List<String> operations = new ArrayList<>();
+        private final int[] cumulativeWeights;
+        private final String spec;
+        private final int maxOperand;
+        // cumulative probabilities of 1..maxOperand for the zipf distribution
+        private final double[] zipf;
+
+        CommandMix(String spec, String operands, int maxOperand) {
+            this.spec = spec + " (" + operands + " operands up to " + maxOperand + ")";
+            this.maxOperand = maxOperand;
+
+            String[] entries = spec.split(",");
+            cumulativeWeights = new int[entries.length];
+
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+
+                if (weight < 1) {
+                    throw new IllegalArgumentException("Bad weight in command mix: " + entries[i]);
+                }
+
+                total += weight;
+                operations.add(parts[0].trim().toUpperCase());
+                cumulativeWeights[i] = total;
+            }
+
+            if (maxOperand < 1) {
+                throw new IllegalArgumentException("--max-operand must be at least 1");
+            }
+
+            switch (operands) {
+                case "uniform":
+                    zipf = null;
+                    break;
+                case "zipf":
+                    zipf = new double[maxOperand];
+                    double sum = 0;
+
+                    for (int k = 1; k <= maxOperand; k++) {
+                        sum += 1.0 / k;
+                        zipf[k - 1] = sum;
+                    }
+                    for (int k = 0; k < maxOperand; k++) {
+                        zipf[k] /= sum;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operand distribution: " + operands);
+            }
+        }
+
+        String next(Random random) {
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            int index = 0;
+
+            while (cumulativeWeights[index] <= pick) {
+                index++;
+            }
+
+            // the second operand is never 0 so DIV can't fail
+            return operations.get(index) + "," + (operand(random) - 1) + "," + operand(random);
+        }
+
+        /**
+         * A value between 1 and maxOperand
+         */
+        private int operand(Random random) {
+            if (zipf == null) {
+                return random.nextInt(maxOperand) + 1;
+            }
+
+            int index = Arrays.binarySearch(zipf, random.nextDouble());
+
+            return Math.min(index >= 0 ? index : -index - 1, maxOperand - 1) + 1;
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+}
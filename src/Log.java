@@ -0,0 +1,335 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared asynchronous logger. Callers copy their message into a preallocated
+ * slot of a lock-free ring and return; a single background thread formats the
+ * lines (with a timestamp that is only re-rendered once a second) and writes
+ * them out in batches. When the writer falls behind and the ring is full new
+ * lines are dropped and counted rather than blocking the caller.
+ *
+ * Lines keep the "[source] message at time" layout the server has always
+ * printed.
+ */
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    // how long flush() waits between attempts while a line is still being logged
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // how long flush() waits on a line that never gets published
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile Level level = Level.DEBUG;
+    private static volatile Ring ring;
+    private static final LongAdder dropped = new LongAdder();
+
+    private Log() {
+    }
+
+    /**
+     * Sets the lowest level that gets written
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + name);
+        }
+    }
+
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Sets the number of lines that can be waiting for the writer. Only has an
+     * effect before the first line is logged.
+     */
+    public static synchronized void setBufferSize(int lines) {
+        if (ring == null) {
+            ring = new Ring(lines);
+        }
+    }
+
+    /**
+     * Number of lines thrown away because the writer could not keep up
+     */
+    public static long droppedLines() {
+        return dropped.sum();
+    }
+
+    public static void debug(Object source, String message) {
+        log(Level.DEBUG, source, message, null);
+    }
+
+    /**
+     * Logs {message} followed by {detail}. The source and detail are only
+     * turned into strings on the writer thread, and only if the line is
+     * enabled, so callers can pass objects instead of building strings.
+     */
+    public static void debug(Object source, String message, Object detail) {
+        log(Level.DEBUG, source, message, detail);
+    }
+
+    public static void info(Object source, String message) {
+        log(Level.INFO, source, message, null);
+    }
+
+    public static void info(Object source, String message, Object detail) {
+        log(Level.INFO, source, message, detail);
+    }
+
+    public static void warn(Object source, String message) {
+        log(Level.WARN, source, message, null);
+    }
+
+    public static void warn(Object source, String message, Object detail) {
+        log(Level.WARN, source, message, detail);
+    }
+
+    public static void error(Object source, String message) {
+        log(Level.ERROR, source, message, null);
+    }
+
+    public static void log(Level lineLevel, Object source, String message, Object detail) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+
+        if (!ring().offer(source, message, detail, System.currentTimeMillis())) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Blocks until every line logged so far has been written, or for at most
+     * a second if one is stuck half logged
+     */
+    public static void flush() {
+        Ring current = ring;
+
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    private static Ring ring() {
+        Ring current = ring;
+
+        if (current == null) {
+            synchronized (Log.class) {
+                if (ring == null) {
+                    ring = new Ring(DEFAULT_BUFFER_SIZE);
+                }
+                current = ring;
+            }
+        }
+
+        return current;
+    }
+
+    private static final class Entry {
+        Object source;
+        String message;
+        Object detail;
+        long time;
+    }
+
+    /**
+     * Preallocated multi-producer ring with one consumer, the writer thread.
+     * Slots use the same sequence numbering as {@link RingBufferQueue}, but
+     * hold mutable entries so logging a line does not allocate.
+     */
+    private static final class Ring implements Runnable {
+        private final int size;
+        private final Entry[] entries;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        // only touched by the writer thread, published for flush()
+        private volatile long head = 0;
+        // set while the writer is parked waiting for a line
+        private volatile boolean sleeping = false;
+
+        private final PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        private final SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
+        private final StringBuilder line = new StringBuilder(256);
+        private long cachedSecond = -1;
+        private String cachedTimestamp;
+        private long reportedDrops = 0;
+        private final Thread writer;
+
+        Ring(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("size < 1");
+            }
+
+            this.size = size;
+            this.entries = new Entry[size];
+            this.sequences = new AtomicLongArray(size);
+
+            for (int i = 0; i < size; i++) {
+                entries[i] = new Entry();
+                sequences.set(i, i);
+            }
+
+            writer = new Thread(this, "Log writer");
+            writer.setDaemon(true);
+            writer.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "Log flush"));
+        }
+
+        boolean offer(Object source, String message, Object detail, long time) {
+            long pos = tail.get();
+
+            while (true) {
+                int index = (int) (pos % size);
+                long diff = sequences.get(index) - pos;
+
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        Entry entry = entries[index];
+                        entry.source = source;
+                        entry.message = message;
+                        entry.detail = detail;
+                        entry.time = time;
+                        sequences.set(index, pos + 1);
+
+                        if (sleeping) {
+                            LockSupport.unpark(writer);
+                        }
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (drain() > 0) {
+                    continue;
+                }
+
+                // a producer publishes then checks sleeping, and we set
+                // sleeping then check for a published line, so one of us
+                // sees the other and the line isn't left waiting
+                sleeping = true;
+                if (sequences.get((int) (head % size)) != head + 1) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+
+        /**
+         * Writes every published entry. Only called by the writer thread, or by
+         * flush() once the writer has been given a chance to finish.
+         */
+        private synchronized int drain() {
+            int written = 0;
+            long pos = head;
+
+            while (true) {
+                int index = (int) (pos % size);
+
+                if (sequences.get(index) != pos + 1) {
+                    break;
+                }
+
+                Entry entry = entries[index];
+                write(entry);
+                entry.source = null;
+                entry.message = null;
+                entry.detail = null;
+
+                sequences.set(index, pos + size);
+                pos++;
+                written++;
+            }
+
+            head = pos;
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                line.setLength(0);
+                line.append("[Log] dropped ").append(drops - reportedDrops).append(" lines (")
+                        .append(drops).append(" total)\n");
+                out.append(line);
+                reportedDrops = drops;
+                written++;
+            }
+
+            if (written > 0) {
+                out.flush();
+            }
+
+            return written;
+        }
+
+        private void write(Entry entry) {
+            line.setLength(0);
+            line.append('[').append(entry.source).append("] ").append(entry.message);
+
+            if (entry.detail != null) {
+                line.append(entry.detail);
+            }
+
+            line.append(" at ").append(timestamp(entry.time)).append('\n');
+            out.append(line);
+        }
+
+        private String timestamp(long time) {
+            long second = time / 1000;
+
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                cachedTimestamp = dt.format(new Date(time));
+            }
+
+            return cachedTimestamp;
+        }
+
+        /**
+         * Drains up to the last line claimed. A producer that has claimed a
+         * slot but not yet filled it holds everything after it back, so
+         * this gives up after {@link #FLUSH_TIMEOUT_NANOS} without progress.
+         */
+        void flush() {
+            long target = tail.get();
+            long giveUpAt = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+
+            while (head < target) {
+                if (drain() > 0) {
+                    giveUpAt = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+                } else if (System.nanoTime() - giveUpAt > 0) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(FLUSH_PARK_NANOS);
+                }
+            }
+        }
+    }
+}
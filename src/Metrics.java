@@ -0,0 +1,277 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide counters and latency histograms. Everything here is updated
+ * with striped or atomic counters so recording stays cheap on the job path;
+ * the cost of combining them is paid by whoever asks for a report.
+ *
+ * Latencies are kept in microseconds.
+ */
+public final class Metrics {
+    // time between a job being put on the queue and a worker taking it off
+    public static final LatencyHistogram queueWait = new LatencyHistogram();
+    // time a worker spends evaluating a job and writing its reply
+    public static final LatencyHistogram serviceTime = new LatencyHistogram();
+    // time from the command being read to its reply being written
+    public static final LatencyHistogram totalTime = new LatencyHistogram();
+    // time an acceptor spends handing off a connection before it can accept the next
+    public static final LatencyHistogram acceptTime = new LatencyHistogram();
+
+    public static final LongAdder accepted = new LongAdder();
+    public static final LongAdder completed = new LongAdder();
+    public static final LongAdder rejected = new LongAdder();
+    public static final LongAdder shed = new LongAdder();
+    public static final LongAdder throttled = new LongAdder();
+    public static final LongAdder poolGrows = new LongAdder();
+    public static final LongAdder poolShrinks = new LongAdder();
+    public static final LongAdder batchItems = new LongAdder();
+    public static final LongAdder cacheHits = new LongAdder();
+    public static final LongAdder cacheMisses = new LongAdder();
+    public static final LongAdder cacheEvictions = new LongAdder();
+    public static final LongAdder outputOverflows = new LongAdder();
+    // jobs answered with a timeout, and dropped because their client had gone
+    public static final LongAdder expired = new LongAdder();
+    public static final LongAdder cancelled = new LongAdder();
+    public static final LongAdder connections = new LongAdder();
+
+    public static final RateMeter arrivals = new RateMeter();
+    public static final RateMeter completions = new RateMeter();
+    public static final RateMeter accepts = new RateMeter();
+
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> counters = new ConcurrentHashMap<>();
+    private static final long startedAt = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a value that is read whenever metrics are reported, such as
+     * the current queue depth
+     */
+    public static void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers a count kept elsewhere that only ever goes up, such as the
+     * journal's syncs. Exported with a _total suffix.
+     */
+    public static void registerCounter(String name, LongSupplier value) {
+        counters.put(name, value);
+    }
+
+    /**
+     * Records the timestamps of a job that has just replied
+     */
+    static void jobCompleted(Job job) {
+        completed.increment();
+        completions.mark();
+
+        queueWait.record(micros(job.getDequeuedAt() - job.getEnqueuedAt()));
+        serviceTime.record(micros(job.getRepliedAt() - job.getStartedAt()));
+        totalTime.record(micros(job.getRepliedAt() - job.getAcceptedAt()));
+    }
+
+    /**
+     * Records a connection accepted at {acceptedAt} (System.nanoTime()) that
+     * has just been handed off
+     */
+    static void connectionAccepted(long acceptedAt) {
+        connections.increment();
+        accepts.mark();
+        acceptTime.record(micros(System.nanoTime() - acceptedAt));
+    }
+
+    static void poolResized(int from, int to) {
+        if (to > from) {
+            poolGrows.increment();
+        } else if (to < from) {
+            poolShrinks.increment();
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public static double uptimeSeconds() {
+        return (System.nanoTime() - startedAt) / 1e9;
+    }
+
+    /**
+     * One line summary, used as the reply to the STATS command
+     */
+    public static String summary() {
+        LatencyHistogram.Snapshot wait = queueWait.snapshot();
+        LatencyHistogram.Snapshot service = serviceTime.snapshot();
+
+        StringBuilder out = new StringBuilder(256);
+        out.append("jobs=").append(completed.sum())
+                .append(" rejected=").append(rejected.sum())
+                .append(" shed=").append(shed.sum())
+                .append(" throttled=").append(throttled.sum())
+                .append(" expired=").append(expired.sum())
+                .append(" cancelled=").append(cancelled.sum())
+                .append(String.format(" rate=%.1f/s", completions.perSecond()))
+                .append(" pool_grows=").append(poolGrows.sum())
+                .append(" pool_shrinks=").append(poolShrinks.sum())
+                .append(" batch_items=").append(batchItems.sum())
+                .append(" cache_hits=").append(cacheHits.sum())
+                .append(" cache_misses=").append(cacheMisses.sum())
+                .append(" cache_evictions=").append(cacheEvictions.sum())
+                .append(" output_overflows=").append(outputOverflows.sum())
+                .append(" connections=").append(connections.sum())
+                .append(String.format(" accept_rate=%.1f/s", accepts.perSecond()));
+
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            out.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            out.append(' ').append(counter.getKey()).append('=').append(counter.getValue().getAsLong());
+        }
+
+        appendPercentiles(out, "queue_wait_us", wait);
+        appendPercentiles(out, "service_us", service);
+        appendPercentiles(out, "accept_us", acceptTime.snapshot());
+
+        return out.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder out, String name, LatencyHistogram.Snapshot snapshot) {
+        out.append(' ').append(name)
+                .append(" p50=").append(snapshot.percentile(0.5))
+                .append(" p99=").append(snapshot.percentile(0.99))
+                .append(" p999=").append(snapshot.percentile(0.999))
+                .append(" max=").append(snapshot.max());
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format
+     */
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(2048);
+
+        counter(out, "capitalize_jobs_accepted_total", "Jobs read from clients", accepted.sum());
+        counter(out, "capitalize_jobs_completed_total", "Jobs that sent a reply", completed.sum());
+        counter(out, "capitalize_jobs_rejected_total", "Jobs rejected because the queue was full", rejected.sum());
+        counter(out, "capitalize_jobs_shed_total", "Jobs turned away or dropped by admission control", shed.sum());
+        counter(out, "capitalize_commands_throttled_total", "Commands turned away by the per-client rate limit", throttled.sum());
+        counter(out, "capitalize_jobs_expired_total", "Jobs answered with a timeout after queueing past their deadline",
+                expired.sum());
+        counter(out, "capitalize_jobs_cancelled_total", "Queued jobs dropped because their client had gone",
+                cancelled.sum());
+        counter(out, "capitalize_pool_grows_total", "Times the pool grew", poolGrows.sum());
+        counter(out, "capitalize_pool_shrinks_total", "Times the pool shrank", poolShrinks.sum());
+        counter(out, "capitalize_batch_items_total", "Operations evaluated inside BATCH commands", batchItems.sum());
+        counter(out, "capitalize_cache_hits_total", "Commands answered from the result cache", cacheHits.sum());
+        counter(out, "capitalize_cache_misses_total", "Cacheable commands that had to be queued", cacheMisses.sum());
+        counter(out, "capitalize_cache_evictions_total", "Results evicted from the cache", cacheEvictions.sum());
+        counter(out, "capitalize_output_overflows_total", "Connections closed for not reading their replies",
+                outputOverflows.sum());
+        counter(out, "capitalize_connections_accepted_total", "Client connections accepted", connections.sum());
+
+        out.append("# HELP capitalize_jobs_per_second Completed jobs per second over the last few seconds\n")
+                .append("# TYPE capitalize_jobs_per_second gauge\n")
+                .append("capitalize_jobs_per_second ").append(completions.perSecond()).append('\n');
+        out.append("# HELP capitalize_accepts_per_second Connections accepted per second over the last few seconds\n")
+                .append("# TYPE capitalize_accepts_per_second gauge\n")
+                .append("capitalize_accepts_per_second ").append(accepts.perSecond()).append('\n');
+
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            String name = "capitalize_" + gauge.getKey();
+            out.append("# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            String name = "capitalize_" + counter.getKey() + "_total";
+            out.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(counter.getValue().getAsLong()).append('\n');
+        }
+
+        summary(out, "capitalize_queue_wait_seconds", "Time jobs spent queued", queueWait.snapshot());
+        summary(out, "capitalize_service_seconds", "Time spent evaluating and replying", serviceTime.snapshot());
+        summary(out, "capitalize_total_seconds", "Time from command read to reply", totalTime.snapshot());
+        summary(out, "capitalize_accept_seconds", "Time spent handing off each accepted connection",
+                acceptTime.snapshot());
+
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram.Snapshot snapshot) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" summary\n");
+
+        for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(snapshot.percentile(quantile) / 1e6).append('\n');
+        }
+
+        out.append(name).append("_sum ").append(snapshot.sum() / 1e6).append('\n')
+                .append(name).append("_count ").append(snapshot.count()).append('\n');
+    }
+
+    /**
+     * Events per second over a sliding window of whole seconds. Each second
+     * has its own slot which is reset the first time it is reused. A slot
+     * holds its second in the high 32 bits and the count in the low 32, so
+     * resetting it and counting into it is one CAS and no event is lost to a
+     * concurrent reset.
+     */
+    public static class RateMeter {
+        private static final int WINDOW = 10;
+        private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+        private final AtomicLongArray slots = new AtomicLongArray(WINDOW);
+
+        public void mark() {
+            mark(1);
+        }
+
+        public void mark(long events) {
+            long second = System.currentTimeMillis() / 1000;
+            int slot = (int) (second % WINDOW);
+
+            while (true) {
+                long current = slots.get(slot);
+                long next = (current >>> 32) == second ? current + events : (second << 32) | events;
+
+                if (slots.compareAndSet(slot, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Average rate over the last full seconds of the window, leaving out
+         * the second that is still in progress
+         */
+        public double perSecond() {
+            long now = System.currentTimeMillis() / 1000;
+            long total = 0;
+
+            for (int i = 1; i < WINDOW; i++) {
+                long second = now - i;
+                int slot = (int) (second % WINDOW);
+
+                long current = slots.get(slot);
+                if ((current >>> 32) == second) {
+                    total += current & COUNT_MASK;
+                }
+            }
+
+            return total / (double) (WINDOW - 1);
+        }
+    }
+}
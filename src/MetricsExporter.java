@@ -0,0 +1,71 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP endpoint serving {@link Metrics#prometheus()} on a loopback
+ * port so a Prometheus agent on the same box can scrape it. Every request,
+ * whatever its path, gets the full metrics page.
+ */
+public class MetricsExporter implements Runnable {
+    // how long a scraper gets to send its request; connections are served
+    // one at a time, so one that never finishes mustn't block the rest
+    private static final int READ_TIMEOUT = 2000;
+
+    private final ServerSocket listener;
+
+    MetricsExporter(int port) throws IOException {
+        listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts serving on a daemon thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "Metrics exporter");
+        thread.setDaemon(true);
+        thread.start();
+
+        Log.info("MetricsExporter", "Serving metrics on port ", listener.getLocalPort());
+    }
+
+    @Override
+    public void run() {
+        while (!listener.isClosed()) {
+            try (Socket socket = listener.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+                // skip the request line and headers
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                }
+
+                byte[] body = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+                String header = "HTTP/1.0 200 OK\r\n"
+                        + "Content-Type: text/plain; version=0.0.4\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n";
+
+                OutputStream out = socket.getOutputStream();
+                out.write(header.getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    Log.warn("MetricsExporter", "Error: ", e);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        listener.close();
+    }
+}
@@ -0,0 +1,795 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking front end for the server. A small, fixed number of I/O
+ * threads each run a {@link Selector}; the first one also accepts new
+ * connections and hands them out round-robin. Command lines are parsed on
+ * the I/O thread and turned into {@link Job}s, and the replies the workers
+ * produce are queued back onto the owning I/O thread to be written.
+ *
+ * Replies aren't written the moment they arrive: each pass of a loop first
+ * collects every reply handed over since the last one, then writes each
+ * connection's pending replies with one gathering write. A connection whose
+ * client lets more than {outputLimit} bytes pile up is closed.
+ *
+ * With a journal that syncs, queueing a job waits for an fsync. That wait
+ * happens on a few journal threads instead of the I/O threads, so a loop
+ * never stalls on the disk and jobs from many connections can share one
+ * group commit.
+ */
+public class NioServer {
+    // how long a selector blocks before re-checking whether the server was killed
+    private static final int SELECT_TIMEOUT = 100;
+    // longest command line we are willing to buffer
+    private static final int MAX_LINE_LENGTH = 1024;
+    // a BATCH line may be longer: room for a full batch of operations with two ints each
+    private static final int MAX_BATCH_LINE_LENGTH = Batch.MAX_SIZE * 32;
+    private static final byte[] BATCH_PREFIX = "BATCH,".getBytes(StandardCharsets.US_ASCII);
+    // most buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+    // threads queueing jobs when that waits on the journal's fsync
+    private static final int JOURNAL_THREADS = 8;
+
+    private final ServerSocketChannel serverChannel;
+    private final SharedQueue<Job> jobQueue;
+    private final IoLoop[] loops;
+    private final boolean keepAlive;
+    private final int idleTimeout;
+    // whether clients may switch to the binary protocol
+    private final boolean binary;
+    // null when commands aren't rate limited
+    private final RateLimiter rateLimiter;
+    private final int outputLimit;
+
+    private int clientNumber = 0;
+    private int nextLoop = 0;
+
+    // jobs waiting for a journal thread to queue them; the threads are null
+    // unless the journal syncs
+    private final LinkedBlockingQueue<Runnable> journalTasks = new LinkedBlockingQueue<>();
+    private Thread[] journalThreads;
+    private volatile boolean stopped = false;
+
+    NioServer(int port, int backlog, SharedQueue<Job> jobQueue, int ioThreads, boolean keepAlive, int idleTimeout,
+              boolean binary, RateLimiter rateLimiter, int outputLimit) throws IOException {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads < 1");
+        }
+
+        this.jobQueue = jobQueue;
+        this.keepAlive = keepAlive;
+        this.idleTimeout = idleTimeout;
+        this.binary = binary;
+        this.rateLimiter = rateLimiter;
+        this.outputLimit = outputLimit > 0 ? outputLimit : Integer.MAX_VALUE;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * The listening socket, so the thread manager can close it on shutdown
+     */
+    public ServerSocket socket() {
+        return serverChannel.socket();
+    }
+
+    /**
+     * Runs the I/O loops until the manager is killed. The calling thread
+     * runs the accepting loop itself.
+     */
+    public void serve(ThreadManager manager) throws InterruptedException {
+        if (Job.journalSyncs()) {
+            journalThreads = new Thread[JOURNAL_THREADS];
+            for (int i = 0; i < JOURNAL_THREADS; i++) {
+                journalThreads[i] = new Thread(this::queueJournaledJobs, "NIO journal " + i);
+                journalThreads[i].start();
+            }
+        }
+
+        Thread[] threads = new Thread[loops.length - 1];
+
+        for (int i = 1; i < loops.length; i++) {
+            IoLoop loop = loops[i];
+            threads[i - 1] = new Thread(() -> loop.run(manager), "NIO loop " + i);
+            threads[i - 1].start();
+        }
+
+        loops[0].run(manager);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        stopped = true;
+        if (journalThreads != null) {
+            for (Thread thread : journalThreads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Runs on a journal thread until the loops have stopped and nothing is
+     * left to queue
+     */
+    private void queueJournaledJobs() {
+        try {
+            while (true) {
+                Runnable task = journalTasks.poll(SELECT_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                if (task != null) {
+                    task.run();
+                } else if (stopped) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            warn("Interrupted with jobs waiting to be journaled: " + journalTasks.size());
+        }
+    }
+
+    private void log(String message) {
+        Log.debug("NioServer", message);
+    }
+
+    private void warn(String message) {
+        Log.warn("NioServer", message);
+    }
+
+    /**
+     * A selector plus the connections registered with it. Everything that
+     * touches a connection's buffers or interest set happens on this loop's
+     * thread; other threads submit work through {@link #execute}.
+     */
+    private class IoLoop {
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // connections with replies queued since the last pass
+        private final ArrayDeque<Connection> dirty = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        IoLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void run(ThreadManager manager) {
+            try {
+                while (!manager.isKilled()) {
+                    selector.select(SELECT_TIMEOUT);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        try {
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else {
+                                Connection connection = (Connection) key.attachment();
+
+                                if (key.isReadable()) {
+                                    connection.read();
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    connection.flush();
+                                }
+                            }
+                        } catch (IOException e) {
+                            warn("Error: " + e);
+                            if (key.attachment() instanceof Connection) {
+                                ((Connection) key.attachment()).closeNow();
+                            }
+                        }
+                    }
+
+                    flushDirty();
+                    checkTimeouts();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!manager.isKilled()) {
+                    warn("Loop " + index + " failed: " + e);
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException ignored) {
+                    }
+                }
+
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Writes out every connection that had replies queued during this
+         * pass
+         */
+        private void flushDirty() {
+            Connection connection;
+
+            while ((connection = dirty.poll()) != null) {
+                connection.dirty = false;
+
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    warn("Error writing to client " + connection.clientNumber + ": " + e);
+                    connection.closeNow();
+                }
+            }
+        }
+
+        /**
+         * Greets clients that didn't ask for the binary protocol in time and
+         * closes pipelined connections that have gone idle
+         */
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+
+            if (!keepAlive && !binary || now - lastIdleCheck < SELECT_TIMEOUT) {
+                return;
+            }
+            lastIdleCheck = now;
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+
+                    if (connection.negotiating && now - connection.lastActivity > BinaryProtocol.NEGOTIATION_TIMEOUT) {
+                        connection.startText();
+                    } else if (connection.reading && connection.pipeline != null
+                            && now - connection.lastActivity > idleTimeout) {
+                        log("Client " + connection.clientNumber + " idle for " + idleTimeout + "ms -- closing");
+                        connection.finishInput();
+                    }
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+
+            while ((channel = serverChannel.accept()) != null) {
+                long acceptedAt = System.nanoTime();
+                channel.configureBlocking(false);
+
+                int number = clientNumber++;
+                IoLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+
+                SocketChannel accepted = channel;
+                if (loop == this) {
+                    register(accepted, number);
+                } else {
+                    loop.execute(() -> loop.register(accepted, number));
+                }
+
+                Metrics.connectionAccepted(acceptedAt);
+            }
+        }
+
+        private void register(SocketChannel channel, int clientNumber) {
+            try {
+                Connection connection = new Connection(this, channel, clientNumber);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+                if (binary) {
+                    // hold the welcome message until we know it's a text client
+                    connection.negotiating = true;
+                } else {
+                    connection.startText();
+                }
+            } catch (IOException e) {
+                warn("Error registering client " + clientNumber + ": " + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-socket state: the partially read command line and the replies
+     * waiting to be written. In keepalive mode the connection keeps reading
+     * pipelined commands and hands out reply slots in request order.
+     */
+    private class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final int clientNumber;
+        private final InetAddress source;
+        // replaced by a larger buffer if the client switches to binary
+        private ByteBuffer input = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private long outputBytes = 0;
+        // waiting in the loop's dirty list
+        private boolean dirty = false;
+        // set in keepalive mode and for binary clients
+        private PipelinedConnection pipeline;
+        private SelectionKey key;
+        // waiting for the first byte to see which protocol the client speaks
+        private boolean negotiating = false;
+        private boolean binaryMode = false;
+        private boolean closeWhenFlushed = false;
+        private boolean reading = true;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(IoLoop loop, SocketChannel channel, int clientNumber) {
+            this.loop = loop;
+            this.channel = channel;
+            this.clientNumber = clientNumber;
+            this.source = channel.socket().getInetAddress();
+            this.pipeline = keepAlive ? new PipelinedConnection(new ChannelResponder(this)) : null;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(input);
+            lastActivity = System.currentTimeMillis();
+
+            if (read == -1) {
+                if (pipeline != null) {
+                    abandonInput();
+                } else if (!reading) {
+                    // closing the channel cancels the job if it is still queued
+                    log("Client " + clientNumber + " hung up before its reply");
+                    closeNow();
+                } else {
+                    log("bad input from client " + clientNumber);
+                    closeNow();
+                }
+                return;
+            }
+
+            if (!reading) {
+                // a one-off client already sent its command; only EOF matters now
+                input.clear();
+                return;
+            }
+
+            if (negotiating && input.position() > 0) {
+                if (input.get(0) == BinaryProtocol.MAGIC) {
+                    startBinary();
+                } else {
+                    startText();
+                }
+            }
+
+            if (binaryMode) {
+                readFrames();
+                return;
+            }
+
+            int start = 0;
+            for (int i = 0; i < input.position() && reading; i++) {
+                if (input.get(i) != '\n') {
+                    continue;
+                }
+
+                int end = (i > start && input.get(i - 1) == '\r') ? i - 1 : i;
+                String command = new String(input.array(), start, end - start, StandardCharsets.US_ASCII);
+                start = i + 1;
+
+                if (!keepAlive) {
+                    // one command per connection: wait for the reply, but
+                    // keep watching for the client hanging up
+                    reading = false;
+                }
+                dispatch(command);
+            }
+
+            // shift any partial command to the front of the buffer
+            input.limit(input.position()).position(start);
+            input.compact();
+
+            if (reading && !input.hasRemaining() && isBatchLine() && input.capacity() < MAX_BATCH_LINE_LENGTH) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, MAX_BATCH_LINE_LENGTH));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+
+            if (reading && !input.hasRemaining()) {
+                if (pipeline != null) {
+                    // after the replies still owed for earlier commands
+                    Responder slot = pipeline.next();
+                    try {
+                        slot.send("Command too long");
+                        slot.close();
+                    } catch (IOException ignored) {
+                        // slots on a channel only queue bytes on this loop
+                    }
+                    finishInput();
+                } else {
+                    stopReading();
+                    send("Command too long");
+                    closeWhenFlushed();
+                }
+            }
+        }
+
+        /**
+         * Whether the partial command at the front of the buffer is a BATCH
+         */
+        private boolean isBatchLine() {
+            if (input.position() < BATCH_PREFIX.length) {
+                return false;
+            }
+            for (int i = 0; i < BATCH_PREFIX.length; i++) {
+                if (input.get(i) != BATCH_PREFIX[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void startText() {
+            negotiating = false;
+            send("Hello, you are client #" + clientNumber + ".");
+        }
+
+        /**
+         * Switches to binary frames, dropping the magic byte from the input
+         */
+        private void startBinary() {
+            log("Client " + clientNumber + " is using the binary protocol");
+            negotiating = false;
+            binaryMode = true;
+
+            if (pipeline == null) {
+                pipeline = new PipelinedConnection(new ChannelResponder(this));
+            }
+
+            // room for the largest BATCH frame
+            ByteBuffer frames = ByteBuffer.allocate(BinaryProtocol.MAX_REQUEST_SIZE);
+            input.flip();
+            input.get();
+            frames.put(input);
+            input = frames;
+        }
+
+        private void readFrames() {
+            input.flip();
+
+            while (reading && input.remaining() >= BinaryProtocol.REQUEST_SIZE) {
+                int start = input.position();
+                Command command = BinaryProtocol.decodeRequest(input.array(), start);
+                int bodyLength = BinaryProtocol.bodyLength(command);
+
+                if (bodyLength < 0) {
+                    // can't tell where the next frame starts, so stop reading
+                    Responder slot = pipeline.next();
+                    try {
+                        slot.reply(BinaryProtocol.reply(Command.BAD_ARGUMENT, command.getRequestId(), 0), 0, BinaryProtocol.REPLY_SIZE);
+                        slot.close();
+                    } catch (IOException ignored) {
+                        // slots on a channel only queue bytes on this loop
+                    }
+                    warn("Bad batch size " + command.getA() + " from client " + clientNumber + " -- closing");
+                    input.position(input.limit());
+                    finishInput();
+                    break;
+                }
+                if (input.remaining() < BinaryProtocol.REQUEST_SIZE + bodyLength) {
+                    // wait for the rest of the frame
+                    break;
+                }
+
+                input.position(start + BinaryProtocol.REQUEST_SIZE);
+                if (bodyLength > 0) {
+                    BinaryProtocol.decodeBody(command, input.array(), input.position());
+                    input.position(input.position() + bodyLength);
+                }
+
+                Responder slot = pipeline.next();
+                if (throttled(slot, null, command) || Job.replyFromCache(slot, command)) {
+                    continue;
+                }
+
+                Job job = new Job(slot, clientNumber, command);
+                submit(job, () -> {
+                    try {
+                        slot.reply(job.rejectionFrame(), 0, BinaryProtocol.REPLY_SIZE);
+                        slot.close();
+                    } catch (IOException ignored) {
+                        // slots on a channel only queue bytes on this loop
+                    }
+                    warn("Too busy -- rejected request " + command.getRequestId() + " from client " + clientNumber);
+                });
+            }
+
+            input.compact();
+        }
+
+        private void dispatch(String command) {
+            if (keepAlive) {
+                Responder slot = pipeline.next();
+
+                if (throttled(slot, command, null) || Job.replyFromCache(slot, command)) {
+                    return;
+                }
+
+                Job job = new Job(slot, clientNumber, command);
+                submit(job, () -> {
+                    try {
+                        slot.send(job.rejectionLine());
+                        slot.close();
+                    } catch (IOException ignored) {
+                        // slots on a channel only queue bytes on this loop
+                    }
+                    warn("Too busy -- rejected command from client " + clientNumber);
+                });
+            } else if (throttled(null, command, null)) {
+                closeWhenFlushed();
+            } else if (Job.replyFromCache(new ChannelResponder(this), command)) {
+                log("Answered client " + clientNumber + " from the cache");
+            } else {
+                Job job = new Job(new ChannelResponder(this), clientNumber, command);
+                submit(job, () -> {
+                    send(job.rejectionLine());
+                    closeWhenFlushed();
+                    warn("Too busy -- had to kill client " + clientNumber);
+                });
+            }
+        }
+
+        /**
+         * Queues {job}, running {rejected} on this loop if it is turned
+         * away. With a journal that syncs, a journal thread queues it instead.
+         */
+        private void submit(Job job, Runnable rejected) {
+            if (journalThreads == null) {
+                if (!job.enqueue(jobQueue)) {
+                    rejected.run();
+                }
+                return;
+            }
+
+            journalTasks.add(() -> {
+                if (!job.enqueue(jobQueue)) {
+                    loop.execute(rejected);
+                }
+            });
+        }
+
+        /**
+         * Turns the command away if the client is over its rate limit. The
+         * slot is closed; a one-off connection is left to the caller. KILL
+         * and STATS are never limited.
+         * @param slot the command's pipeline slot, or null to reply directly
+         * @param command the text command, or null for a binary one
+         * @param request the binary request, or null for a text command
+         * @return whether it was turned away
+         */
+        private boolean throttled(Responder slot, String command, Command request) {
+            if (rateLimiter == null || Job.isControl(command, request)) {
+                return false;
+            }
+
+            long retryAfter = rateLimiter.acquire(source);
+            if (retryAfter == 0) {
+                return false;
+            }
+
+            if (slot == null) {
+                send(RateLimiter.rejectionLine(retryAfter));
+            } else {
+                try {
+                    if (request != null) {
+                        slot.reply(BinaryProtocol.reply(Command.RATE_LIMITED, request.getRequestId(), retryAfter),
+                                0, BinaryProtocol.REPLY_SIZE);
+                    } else {
+                        slot.send(RateLimiter.rejectionLine(retryAfter));
+                    }
+                    slot.close();
+                } catch (IOException ignored) {
+                    // slots on a channel only queue bytes on this loop
+                }
+            }
+            log("Client " + clientNumber + " over the rate limit -- rejected command");
+
+            return true;
+        }
+
+        private void stopReading() {
+            reading = false;
+
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * No more commands will be read; close once the pipeline drains
+         */
+        void finishInput() {
+            stopReading();
+
+            try {
+                pipeline.finishInput();
+            } catch (IOException ignored) {
+                // slots on a channel only queue bytes on this loop
+            }
+        }
+
+        /**
+         * The client hung up; close once the pipeline drains, cancelling
+         * the commands still queued
+         */
+        void abandonInput() {
+            stopReading();
+
+            try {
+                pipeline.abandon();
+            } catch (IOException ignored) {
+                // slots on a channel only queue bytes on this loop
+            }
+        }
+
+        void send(String line) {
+            queue(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        /**
+         * Adds {data} to the output, to be written at the end of the loop's
+         * current pass
+         */
+        void queue(ByteBuffer data) {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            if (outputBytes > outputLimit - data.remaining()) {
+                warn("Client " + clientNumber + " not reading, more than " + outputLimit + " bytes pending -- closing");
+                Metrics.outputOverflows.increment();
+                closeNow();
+                return;
+            }
+
+            output.add(data);
+            outputBytes += data.remaining();
+
+            // while OP_WRITE is set the selector flushes us when there is room
+            if (!dirty && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                dirty = true;
+                loop.dirty.add(this);
+            }
+        }
+
+        void flush() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            ByteBuffer[] gather = loop.gather;
+
+            while (!output.isEmpty()) {
+                int count = 0;
+                long offered = 0;
+                for (ByteBuffer buffer : output) {
+                    if (count == gather.length) {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                    offered += buffer.remaining();
+                }
+
+                long written = channel.write(gather, 0, count);
+                outputBytes -= written;
+                Arrays.fill(gather, 0, count, null);
+
+                while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                    output.poll();
+                }
+
+                if (written < offered) {
+                    // socket buffer is full, wait until it drains
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+
+            if (closeWhenFlushed) {
+                closeNow();
+            }
+        }
+
+        void closeWhenFlushed() {
+            closeWhenFlushed = true;
+
+            if (output.isEmpty()) {
+                closeNow();
+            }
+        }
+
+        void closeNow() {
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                warn("Error closing socket: " + e);
+            }
+        }
+    }
+
+    /**
+     * Hands replies produced on a worker thread back to the connection's
+     * I/O loop.
+     */
+    private static class ChannelResponder implements Responder {
+        private final Connection connection;
+
+        ChannelResponder(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void reply(byte[] data, int offset, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+
+            connection.loop.execute(() -> connection.queue(ByteBuffer.wrap(copy)));
+        }
+
+        @Override
+        public void close() {
+            connection.loop.execute(connection::closeWhenFlushed);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return connection.channel.isOpen();
+        }
+    }
+}
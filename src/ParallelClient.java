@@ -3,8 +3,6 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Random;
 
 /**
@@ -15,7 +13,36 @@ public class ParallelClient {
     private static final int SERVER_PORT = 9898;
     private static Random rand;
 
-    public static void main(String[] args) {
+    /**
+     * With --mode=random (the original behaviour) starts a random number of
+     * clients that each send one command after a random delay. Otherwise
+     * runs a {@link LoadGenerator}:
+     *
+     *   --mode=closed|open  fixed number of clients, or a fixed rate (default closed)
+     *   --rate=N            commands per second in open loop mode (default 1000)
+     *   --concurrency=N     client threads (default 10 closed, 50 open)
+     *   --duration=S        length of the run in seconds (default 10)
+     *   --mix=OP:W,...      weighted commands (default ADD:1,SUB:1,MUL:1,DIV:1)
+     *   --operands=uniform|zipf, --max-operand=N (default 1000)
+     *   --reuse             keep each client's connection open (needs --keepalive on the server)
+     *   --binary            use the binary protocol (needs --binary on the server)
+     *   --csv=FILE          per second counts and latencies
+     *   --ports=N           spread connections over N ports from --port (for a server
+     *                       started with --listeners=N --shard-by=ports)
+     *   --deadline=MS       ask the server to time out commands still queued after this
+     *                       long, instead of running them after we've given up
+     *   --host, --port, --timeout=MS, --log-level
+     */
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        Log.setLevel(Log.parseLevel(options.getString("log-level", "info")));
+
+        if (!options.getString("mode", "closed").equals("random")) {
+            new LoadGenerator(options).run();
+            Log.flush();
+            return;
+        }
+
         rand = new Random(System.currentTimeMillis());
         int numClients = randInt(10, 500);
         Thread[] workers = new Thread[numClients];
@@ -35,6 +62,7 @@ public class ParallelClient {
         }
 
         log("All clients have quit");
+        Log.flush();
     }
 
     /**
@@ -56,9 +84,7 @@ public class ParallelClient {
     }
 
     private static void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
-
-        System.out.printf("[Main] %s at %s\n", message, dt.format(new Date()));
+        Log.info("Main", message);
     }
 
     private static class ClientWorker implements Runnable {
@@ -70,9 +96,11 @@ public class ParallelClient {
         };
 
         private final int index;
+        private final String logSource;
 
         ClientWorker(int index) {
             this.index = index;
+            this.logSource = "Client " + index;
         }
 
         @Override
@@ -120,9 +148,7 @@ public class ParallelClient {
         }
 
         private void log(String message) {
-            SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
-
-            System.out.printf("[Client %d] %s at %s\n", index, message, dt.format(new Date()));
+            Log.debug(logSource, message);
         }
     }
 }
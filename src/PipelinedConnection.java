@@ -0,0 +1,129 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the replies for commands pipelined on one connection in request
+ * order. Every command gets its own {@link Responder} from {@link #next()};
+ * a reply that finishes before the ones ahead of it is buffered until they
+ * have been written. The underlying connection is closed once the client has
+ * stopped sending and every outstanding reply has gone out.
+ *
+ * A client that hangs up rather than going idle has {@link #abandon}ed its
+ * commands: the slots report the connection as gone, so jobs still queued
+ * for them are cancelled instead of run.
+ */
+public class PipelinedConnection {
+    private final Responder connection;
+    private final ArrayDeque<Slot> pending = new ArrayDeque<>();
+    private boolean inputFinished = false;
+    private volatile boolean abandoned = false;
+    private boolean closed = false;
+
+    PipelinedConnection(Responder connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Reserves the next reply slot, in the order commands were read
+     * @return responder for the next command
+     */
+    public synchronized Responder next() {
+        if (inputFinished) {
+            throw new IllegalStateException("Input already finished");
+        }
+
+        Slot slot = new Slot();
+        pending.add(slot);
+
+        return slot;
+    }
+
+    /**
+     * Called when the client goes idle or no more commands will be read from
+     * it. The connection is closed as soon as every reserved slot has been
+     * answered.
+     */
+    public synchronized void finishInput() throws IOException {
+        inputFinished = true;
+        flushCompleted();
+    }
+
+    /**
+     * Called when the client hits EOF or the read fails. Like
+     * {@link #finishInput}, but commands not yet run are cancelled.
+     */
+    public void abandon() throws IOException {
+        abandoned = true;
+        finishInput();
+    }
+
+    /**
+     * Whether {responder} is a slot on some pipelined connection
+     */
+    static boolean isSlot(Responder responder) {
+        return responder instanceof Slot;
+    }
+
+    /**
+     * Number of commands read but not yet replied to
+     */
+    public synchronized int outstanding() {
+        return pending.size();
+    }
+
+    private void flushCompleted() throws IOException {
+        while (!pending.isEmpty() && pending.peek().done) {
+            Slot slot = pending.poll();
+
+            if (slot.buffered != null) {
+                writeThrough(slot.buffered.toByteArray(), 0, slot.buffered.size());
+            }
+        }
+
+        if (pending.isEmpty() && inputFinished && !closed) {
+            closed = true;
+            connection.close();
+        }
+    }
+
+    private void writeThrough(byte[] data, int offset, int length) throws IOException {
+        if (!closed) {
+            connection.reply(data, offset, length);
+        }
+    }
+
+    private class Slot implements Responder {
+        private ByteArrayOutputStream buffered;
+        private boolean done = false;
+
+        @Override
+        public void reply(byte[] data, int offset, int length) throws IOException {
+            synchronized (PipelinedConnection.this) {
+                if (pending.peek() == this) {
+                    // nothing ahead of us, skip the buffer
+                    writeThrough(data, offset, length);
+                    return;
+                }
+
+                if (buffered == null) {
+                    buffered = new ByteArrayOutputStream(length);
+                }
+                buffered.write(data, offset, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (PipelinedConnection.this) {
+                done = true;
+                flushCompleted();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !abandoned && connection.isOpen();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Queue split into lanes so a command that has to run soon isn't stuck
+ * behind the backlog.
+ *
+ * Lane 0 is the control lane: it is always served first and doesn't count
+ * against the capacity, so KILL still gets in when the queue is full. The
+ * other lanes share the capacity and are served weighted round-robin, lane i
+ * getting up to weights[i - 1] items in a row while it has any.
+ *
+ * Inside a lane, items are grouped by flow (the client number) and the flows
+ * take turns one item at a time. That's deficit round robin with every item
+ * costing the same, so a client with a thousand queued commands waits its
+ * turn like one with a single command.
+ *
+ * size() is the total over every lane so the thread manager scales on the
+ * whole backlog.
+ *
+ * @param <E>
+ */
+public class PriorityLaneQueue<E> extends SharedQueue<E> {
+    public static final int CONTROL_LANE = 0;
+    // the control lane is exempt from the capacity, but not unbounded
+    private static final int CONTROL_CAPACITY = 64;
+
+    private final int capacity;
+    private final ToIntFunction<E> laneOf;
+    private final ToIntFunction<E> flowOf;
+
+    private final Lane<E> control = new Lane<>(0);
+    private final Lane<E>[] lanes;
+    // weighted lane being served and how many more items it may give
+    private int current;
+    private int credit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition removed = lock.newCondition();
+    private volatile int size;
+    private long removals;
+
+    /**
+     * @param capacity most items across the weighted lanes, or -1 for no limit
+     * @param weights relative share of each weighted lane, lanes 1 and up
+     * @param laneOf picks an item's lane; out of range lanes count as the last
+     * @param flowOf groups the items within a lane, such as by client
+     */
+    PriorityLaneQueue(int capacity, int[] weights, ToIntFunction<E> laneOf, ToIntFunction<E> flowOf) {
+        super(capacity);
+
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("No lane weights");
+        }
+
+        this.capacity = capacity;
+        this.laneOf = laneOf;
+        this.flowOf = flowOf;
+        @SuppressWarnings("unchecked")
+        Lane<E>[] lanes = (Lane<E>[]) new Lane<?>[weights.length];
+        this.lanes = lanes;
+
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Lane weight < 1");
+            }
+            lanes[i] = new Lane<>(weights[i]);
+        }
+        credit = lanes[0].weight;
+    }
+
+    /**
+     * Adds an item to the end of its flow in its lane
+     * @return false if its lane has no room
+     */
+    @Override
+    public boolean add(E element) {
+        int lane = laneOf.applyAsInt(element);
+
+        lock.lock();
+        try {
+            if (lane == CONTROL_LANE) {
+                if (control.size == CONTROL_CAPACITY) {
+                    return false;
+                }
+                control.add(flowOf.applyAsInt(element), element);
+            } else {
+                if (capacity != -1 && size - control.size >= capacity) {
+                    return false;
+                }
+                lanes[Math.min(Math.max(lane, 1), lanes.length) - 1].add(flowOf.applyAsInt(element), element);
+            }
+
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        sizeChanged();
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return add(e);
+    }
+
+    /**
+     * Removes the next item in priority order
+     * @return the item, or null if every lane is empty
+     */
+    @Override
+    public E remove() {
+        E data;
+
+        lock.lock();
+        try {
+            data = next();
+        } finally {
+            lock.unlock();
+        }
+
+        if (data != null) {
+            sizeChanged();
+        }
+        return data;
+    }
+
+    @Override
+    public E poll() {
+        return remove();
+    }
+
+    /**
+     * Removes up to {maxElements} items, in the order remove() would have
+     * returned them
+     */
+    @Override
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        int drained = 0;
+
+        lock.lock();
+        try {
+            E data;
+            while (drained < maxElements && (data = next()) != null) {
+                target.add(data);
+                drained++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (drained > 0) {
+            sizeChanged();
+        }
+        return drained;
+    }
+
+    @Override
+    public List<E> takeBatch(int maxElements) throws InterruptedException {
+        List<E> batch = new ArrayList<>(maxElements);
+
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+
+            E data;
+            while (batch.size() < maxElements && (data = next()) != null) {
+                batch.add(data);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        sizeChanged();
+        return batch;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E data;
+
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+
+            data = next();
+        } finally {
+            lock.unlock();
+        }
+
+        sizeChanged();
+        return data;
+    }
+
+    @Override
+    public E poll(int consumer, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        E data;
+
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+
+            data = next();
+        } finally {
+            lock.unlock();
+        }
+
+        sizeChanged();
+        return data;
+    }
+
+    @Override
+    public void waitForRemove() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long start = removals;
+
+            while (removals == start) {
+                removed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Items waiting in one lane
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lane == CONTROL_LANE ? control.size : lanes[lane - 1].size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the next item: the control lane first, then the weighted lanes
+     * in turn. Called with the lock held.
+     */
+    private E next() {
+        E data = null;
+
+        if (control.size > 0) {
+            data = control.remove();
+        } else {
+            // one full lap, plus a second look at the lane we started on in
+            // case its credit had run out
+            for (int i = 0; i <= lanes.length && data == null; i++) {
+                Lane<E> lane = lanes[current];
+
+                if (lane.size > 0 && credit > 0) {
+                    credit--;
+                    data = lane.remove();
+                } else {
+                    current = (current + 1) % lanes.length;
+                    credit = lanes[current].weight;
+                }
+            }
+        }
+
+        if (data != null) {
+            size--;
+            removals++;
+            removed.signalAll();
+        }
+        return data;
+    }
+
+    /**
+     * One lane's items grouped into per-flow FIFOs, with the flows that have
+     * items waiting kept in the order they take turns
+     */
+    private static class Lane<E> {
+        private final int weight;
+        private final Map<Integer, Flow<E>> flows = new HashMap<>();
+        private final ArrayDeque<Flow<E>> active = new ArrayDeque<>();
+        private int size;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+
+        void add(int flow, E element) {
+            Flow<E> target = flows.get(flow);
+
+            if (target == null) {
+                target = new Flow<>(flow);
+                flows.put(flow, target);
+                active.add(target);
+            }
+
+            target.items.add(element);
+            size++;
+        }
+
+        E remove() {
+            Flow<E> flow = active.poll();
+            E data = flow.items.poll();
+            size--;
+
+            if (flow.items.isEmpty()) {
+                // forget it so finished clients don't pile up in the map
+                flows.remove(flow.id);
+            } else {
+                active.add(flow);
+            }
+
+            return data;
+        }
+    }
+
+    private static class Flow<E> {
+        private final int id;
+        private final ArrayDeque<E> items = new ArrayDeque<>();
+
+        Flow(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-source token buckets, so one client sending as fast as it can gets its
+ * own share of the queue instead of all of it. Every remote address has a
+ * bucket holding up to {burst} tokens that refills at {rate} per second;
+ * each command takes a token and a command that finds the bucket empty is
+ * turned away before a job is ever built.
+ *
+ * A bucket left alone long enough to refill completely is the same as a new
+ * one, so buckets idle that long are swept out of the map. The sweep runs on
+ * whichever caller notices it is due.
+ */
+public class RateLimiter {
+    private final double tokensPerNano;
+    private final double burst;
+    private final long idleNanos;
+
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep;
+
+    /**
+     * @param perSecond commands each address may send per second on average
+     * @param burst commands an address may send at once after being quiet
+     */
+    RateLimiter(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Need a positive rate and burst");
+        }
+
+        this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        // at least a second so the sweep doesn't run constantly at high rates
+        this.idleNanos = Math.max(TimeUnit.SECONDS.toNanos(1), (long) (burst / tokensPerNano));
+        this.nextSweep = new AtomicLong(System.nanoTime() + idleNanos);
+    }
+
+    /**
+     * Takes a token from {source}'s bucket
+     * @return 0 if the command may go ahead, otherwise how many milliseconds
+     *         until the bucket has a token again (at least 1)
+     */
+    public long acquire(InetAddress source) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+
+        Bucket bucket = buckets.computeIfAbsent(source, address -> new Bucket(burst, now));
+        long wait = bucket.take(now, tokensPerNano, burst);
+
+        if (wait > 0) {
+            Metrics.throttled.increment();
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+
+        return 0;
+    }
+
+    /**
+     * The reply to a text command that was turned away
+     */
+    public static String rejectionLine(long retryAfterMillis) {
+        return "Rate limit exceeded, please retry after " + retryAfterMillis + "ms";
+    }
+
+    /**
+     * Addresses with a bucket that isn't full yet, give or take a sweep
+     */
+    public int sources() {
+        return buckets.size();
+    }
+
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+
+        if (now - due >= 0 && nextSweep.compareAndSet(due, now + idleNanos)) {
+            buckets.values().removeIf(bucket -> bucket.idleFor(now) >= idleNanos);
+        }
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise nanoseconds until one is
+         *         available
+         */
+        synchronized long take(long now, double tokensPerNano, double burst) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        synchronized long idleFor(long now) {
+            return now - refilledAt;
+        }
+    }
+}
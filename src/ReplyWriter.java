@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes replies for the thread per connection front end on its own
+ * threads, so a worker hands its reply over and moves on to the next job
+ * instead of blocking on the client's socket.
+ *
+ * Each connection gets an outbox. Replies pile up in it while a writer is
+ * busy, and the writer that picks it up next copies everything pending into
+ * one buffer and sends it with a single write, then closes the socket if the
+ * connection is done. A connection that lets more than {outputLimit} bytes
+ * pile up is reading too slowly; it is closed and its replies dropped, which
+ * also frees a writer stuck writing to it.
+ */
+public class ReplyWriter {
+    // most bytes coalesced into one write
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_MILLIS = 100;
+    // how long shutdown waits on a writer stuck on a client
+    private static final long SHUTDOWN_MILLIS = 2000;
+
+    private final LinkedBlockingQueue<Outbox> ready = new LinkedBlockingQueue<>();
+    private final Thread[] threads;
+    private final int outputLimit;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param outputLimit most bytes waiting to be written to one connection,
+     *                    or 0 for no limit
+     */
+    ReplyWriter(int threads, int outputLimit) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+
+        this.threads = new Thread[threads];
+        this.outputLimit = outputLimit > 0 ? outputLimit : Integer.MAX_VALUE;
+
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(this::run, "Reply writer " + i);
+            this.threads[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * A responder that hands replies for {socket} to this writer. Closing it
+     * closes the socket once everything before has been written.
+     */
+    public Responder responder(Socket socket) throws IOException {
+        return new Outbox(socket);
+    }
+
+    /**
+     * Writes whatever is still pending and stops the writer threads
+     */
+    public void shutdown() throws InterruptedException {
+        stopped = true;
+
+        for (Thread thread : threads) {
+            thread.join(SHUTDOWN_MILLIS);
+        }
+    }
+
+    /**
+     * Connections with replies waiting
+     */
+    public int backlog() {
+        return ready.size();
+    }
+
+    private void run() {
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+
+        try {
+            while (true) {
+                Outbox outbox = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (outbox != null) {
+                    outbox.write(buffer);
+                } else if (stopped) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.warn("ReplyWriter", "Interrupted with replies pending: ", ready.size());
+        }
+    }
+
+    private class Outbox implements Responder {
+        private final Socket socket;
+        private final OutputStream output;
+
+        // guarded by this
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private int pendingBytes = 0;
+        // on the ready queue or being written
+        private boolean scheduled = false;
+        private boolean closing = false;
+        private boolean closed = false;
+
+        Outbox(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+        }
+
+        @Override
+        public void reply(byte[] data, int offset, int length) throws IOException {
+            byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+
+            synchronized (this) {
+                if (closed) {
+                    // dropped, like everything else pending when it closed
+                    return;
+                }
+
+                if (pendingBytes > outputLimit - length) {
+                    Metrics.outputOverflows.increment();
+                    closeSocket();
+                    throw new IOException("Client not reading, more than " + outputLimit + " bytes pending");
+                }
+
+                pending.add(copy);
+                pendingBytes += length;
+                schedule();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closing = true;
+            schedule();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        private void schedule() {
+            if (!scheduled && !closed) {
+                scheduled = true;
+                ready.add(this);
+            }
+        }
+
+        /**
+         * Writes until nothing is pending, coalescing replies into {buffer}.
+         * Called on a writer thread.
+         */
+        void write(byte[] buffer) {
+            while (true) {
+                byte[] large = null;
+                int length = 0;
+
+                synchronized (this) {
+                    if (closed || pending.isEmpty()) {
+                        scheduled = false;
+
+                        if (closing && !closed) {
+                            closeSocket();
+                        }
+                        return;
+                    }
+
+                    while (!pending.isEmpty() && length + pending.peek().length <= buffer.length) {
+                        byte[] reply = pending.poll();
+                        System.arraycopy(reply, 0, buffer, length, reply.length);
+                        length += reply.length;
+                    }
+
+                    if (length == 0) {
+                        // a reply too big to coalesce goes out on its own
+                        large = pending.poll();
+                        length = large.length;
+                    }
+                    pendingBytes -= length;
+                }
+
+                try {
+                    output.write(large != null ? large : buffer, 0, length);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (!closed) {
+                            Log.warn("ReplyWriter", "Error writing reply: ", e);
+                            closeSocket();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Caller holds the lock
+         */
+        private void closeSocket() {
+            closed = true;
+            pending.clear();
+            pendingBytes = 0;
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn("ReplyWriter", "Error closing socket: ", e);
+            }
+        }
+    }
+}
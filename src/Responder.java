@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Destination for the reply to a single request. Implementations must not
+ * hold on to the array passed to {@link #reply} after the call returns.
+ */
+public interface Responder {
+    /**
+     * Sends raw reply bytes to the client
+     */
+    void reply(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Signals that no more replies will be sent for this request
+     */
+    void close() throws IOException;
+
+    /**
+     * Whether the client can still get a reply. A job whose client has gone
+     * is cancelled rather than run.
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
+    /**
+     * Sends a single newline terminated line of text
+     * @param line text without the line terminator
+     */
+    default void send(String line) throws IOException {
+        byte[] data = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+
+        reply(data, 0, data.length);
+    }
+}
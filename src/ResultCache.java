@@ -0,0 +1,171 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded replies to arithmetic commands, keyed by operation and operands,
+ * so a command that has been answered before can be answered again by the
+ * front end without going through the queue and the pool.
+ *
+ * Text and binary replies are kept apart: they overflow differently (int
+ * against long) and are encoded differently.
+ *
+ * The cache is split into stripes, each an access ordered LinkedHashMap
+ * behind its own lock, and a full stripe evicts its least recently used
+ * entry. Lookups reuse a key per thread so a hit doesn't allocate.
+ */
+public class ResultCache {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ThreadLocal<Key> lookupKeys = ThreadLocal.withInitial(Key::new);
+
+    /**
+     * @param maxEntries entries kept across all stripes
+     */
+    ResultCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+
+        int perStripe = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * The reply line for a text command, newline included, or null if it
+     * isn't cached. The array must not be modified.
+     */
+    public byte[] getText(byte op, int a, int b) {
+        return get(false, op, a, b);
+    }
+
+    /**
+     * Caches the reply line for a text command
+     */
+    public void putText(byte op, int a, int b, byte[] reply, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(reply, offset, copy, 0, length);
+
+        put(new Key().set(false, op, a, b), copy);
+    }
+
+    /**
+     * The reply frame for a binary request with its request id zeroed, or
+     * null if it isn't cached. The array must not be modified.
+     */
+    public byte[] getBinary(Command request) {
+        return get(true, request.getOp(), request.getA(), request.getB());
+    }
+
+    /**
+     * Caches the reply to a binary request that has been evaluated
+     */
+    public void putBinary(Command request) {
+        put(new Key().set(true, request.getOp(), request.getA(), request.getB()),
+                BinaryProtocol.reply(request.getStatus(), 0, request.getResult()));
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+    private byte[] get(boolean binary, byte op, long a, long b) {
+        Key key = lookupKeys.get().set(binary, op, a, b);
+        Stripe stripe = stripeFor(key);
+        byte[] reply;
+
+        synchronized (stripe) {
+            reply = stripe.get(key);
+        }
+
+        if (reply == null) {
+            Metrics.cacheMisses.increment();
+        } else {
+            Metrics.cacheHits.increment();
+        }
+
+        return reply;
+    }
+
+    private void put(Key key, byte[] reply) {
+        Stripe stripe = stripeFor(key);
+
+        synchronized (stripe) {
+            stripe.put(key, reply);
+        }
+    }
+
+    private Stripe stripeFor(Key key) {
+        int hash = key.hashCode();
+
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static class Stripe extends LinkedHashMap<Key, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            if (size() > maxEntries) {
+                Metrics.cacheEvictions.increment();
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Mutable so lookups can reuse one; a key is never changed once it has
+     * been put in a map
+     */
+    private static class Key {
+        private boolean binary;
+        private byte op;
+        private long a;
+        private long b;
+
+        Key set(boolean binary, byte op, long a, long b) {
+            this.binary = binary;
+            this.op = op;
+            this.a = a;
+            this.b = b;
+
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return binary == other.binary && op == other.op && a == other.a && b == other.b;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * op + (binary ? 1 : 0);
+            hash = 31 * hash + Long.hashCode(a);
+            return 31 * hash + Long.hashCode(b);
+        }
+    }
+}
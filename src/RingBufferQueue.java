@@ -0,0 +1,359 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free bounded multi-producer/multi-consumer queue backed by a
+ * preallocated ring of slots. Each slot carries a sequence number which tells
+ * producers and consumers whose turn it is to use the slot, so an add or
+ * remove is a single CAS on the padded head or tail counter rather than a
+ * chain of monitors.
+ *
+ * Blocking is only used when a consumer finds the ring empty; producers skip
+ * the notify entirely unless someone is actually parked.
+ *
+ * @param <E>
+ */
+public class RingBufferQueue<E> extends SharedQueue<E> {
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    // number of times take() retries before parking
+    private static final int SPIN_TRIES = 64;
+
+    private final int ringSize;
+    private final long[] sequences;
+    private final Object[] slots;
+
+    // next position to be written by a producer
+    private final PaddedCounter tail = new PaddedCounter();
+    // next position to be read by a consumer
+    private final PaddedCounter head = new PaddedCounter();
+
+    private final Object notEmpty = new Object();
+    private final Object removed = new Object();
+    private final AtomicInteger takeWaiters = new AtomicInteger();
+    private final AtomicInteger removeWaiters = new AtomicInteger();
+
+    RingBufferQueue(int capacity) {
+        super(capacity);
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("RingBufferQueue requires a positive capacity");
+        }
+
+        this.ringSize = capacity;
+        this.sequences = new long[capacity];
+        this.slots = new Object[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            sequences[i] = i;
+        }
+    }
+
+    /**
+     * Adds an item to the end of the queue
+     * @param element element to add
+     * @return false if the queue is at capacity
+     */
+    @Override
+    public boolean add(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long pos = tail.get();
+
+        while (true) {
+            int index = (int) (pos % ringSize);
+            long seq = (long) SEQUENCES.getVolatile(sequences, index);
+            long diff = seq - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    SLOTS.setRelease(slots, index, element);
+                    // volatile store pairs with the volatile read of takeWaiters below
+                    SEQUENCES.setVolatile(sequences, index, pos + 1);
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the consumer that owns this slot from the previous lap hasn't freed it yet
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        if (takeWaiters.get() > 0) {
+            synchronized (notEmpty) {
+                notEmpty.notify();
+            }
+        }
+
+        sizeChanged();
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return add(e);
+    }
+
+    /**
+     * Removes an item from the front of the queue
+     * @return E item at the front of the queue, or null if the queue is empty
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove() {
+        long pos = head.get();
+        E data;
+
+        while (true) {
+            int index = (int) (pos % ringSize);
+            long seq = (long) SEQUENCES.getVolatile(sequences, index);
+            long diff = seq - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    data = (E) SLOTS.getAcquire(slots, index);
+                    SLOTS.setRelease(slots, index, null);
+                    SEQUENCES.setVolatile(sequences, index, pos + ringSize);
+                    break;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+
+        if (removeWaiters.get() > 0) {
+            synchronized (removed) {
+                removed.notifyAll();
+            }
+        }
+
+        sizeChanged();
+        return data;
+    }
+
+    @Override
+    public E poll() {
+        return remove();
+    }
+
+    /**
+     * Removes up to {maxElements} items with a single CAS on the head counter
+     * @param target collection the removed items are added to, in queue order
+     * @param maxElements the most items to remove
+     * @return the number of items removed
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        long pos;
+        int ready;
+
+        do {
+            pos = head.get();
+            ready = 0;
+
+            // count how many consecutive slots past head have been published
+            while (ready < maxElements) {
+                long slot = pos + ready;
+                long seq = (long) SEQUENCES.getVolatile(sequences, (int) (slot % ringSize));
+
+                if (seq != slot + 1) {
+                    break;
+                }
+                ready++;
+            }
+
+            if (ready == 0) {
+                return 0;
+            }
+        } while (!head.compareAndSet(pos, pos + ready));
+
+        for (int i = 0; i < ready; i++) {
+            long slot = pos + i;
+            int index = (int) (slot % ringSize);
+
+            target.add((E) SLOTS.getAcquire(slots, index));
+            SLOTS.setRelease(slots, index, null);
+            SEQUENCES.setVolatile(sequences, index, slot + ringSize);
+        }
+
+        if (removeWaiters.get() > 0) {
+            synchronized (removed) {
+                removed.notifyAll();
+            }
+        }
+
+        sizeChanged();
+        return ready;
+    }
+
+    /**
+     * Blocks until at least one item is available, then removes up to
+     * {maxElements} items
+     * @param maxElements the most items to remove
+     * @return the removed items in queue order, never empty
+     * @throws InterruptedException
+     */
+    @Override
+    public List<E> takeBatch(int maxElements) throws InterruptedException {
+        List<E> batch = new ArrayList<>(maxElements);
+
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            if (drainTo(batch, maxElements) > 0) {
+                return batch;
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                while (drainTo(batch, maxElements) == 0) {
+                    notEmpty.wait();
+                }
+
+                return batch;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Blocking remove(). Spins briefly before parking on the not-empty monitor.
+     * @return the item at the front of the queue
+     * @throws InterruptedException
+     */
+    @Override
+    public E take() throws InterruptedException {
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            E data = remove();
+            if (data != null) {
+                return data;
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                E data;
+                while ((data = remove()) == null) {
+                    notEmpty.wait();
+                }
+
+                return data;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public E poll(int consumer, long timeout, TimeUnit unit) throws InterruptedException {
+        E data = remove();
+        if (data != null) {
+            return data;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                while ((data = remove()) == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(notEmpty, remaining);
+                }
+
+                return data;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The calling thread will wait until an item has been removed from the queue
+     */
+    @Override
+    public void waitForRemove() throws InterruptedException {
+        synchronized (removed) {
+            removeWaiters.incrementAndGet();
+            try {
+                long start = head.get();
+                while (head.get() == start) {
+                    removed.wait();
+                }
+            } finally {
+                removeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        // read head first so a concurrent remove can only make the result smaller
+        long h = head.get();
+        long t = tail.get();
+        long size = t - h;
+
+        if (size < 0) {
+            return 0;
+        }
+
+        return (int) Math.min(size, ringSize);
+    }
+
+    /**
+     * Counter with enough padding on either side of it to keep it on its
+     * own cache line, so producers bumping the tail don't invalidate the
+     * line consumers are spinning on.
+     */
+    private static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class CounterValue extends LeftPadding {
+        volatile long value;
+    }
+
+    private static final class PaddedCounter extends CounterValue {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(CounterValue.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expected, long newValue) {
+            return VALUE.compareAndSet(this, expected, newValue);
+        }
+    }
+}
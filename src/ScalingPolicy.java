@@ -0,0 +1,31 @@
+/**
+ * Decides how many workers the pool should have. The {@link ThreadManager}
+ * asks on every poll and resizes the pool whenever the answer changes.
+ */
+public interface ScalingPolicy {
+    /**
+     * @param queueLength jobs waiting in the queue right now
+     * @param activeWorkers the current size of the pool
+     * @param capacity the most workers the pool can have
+     * @return the number of workers the pool should have
+     */
+    int targetWorkers(int queueLength, int activeWorkers, int capacity);
+
+    /**
+     * Why the last call to {@link #targetWorkers} answered the way it did,
+     * for the log
+     */
+    String reason();
+
+    /**
+     * Queue length at which the manager should ask right away instead of
+     * waiting for its next poll
+     */
+    int highWatermark();
+
+    /**
+     * Queue length at or below which the pool counts as idle again and the
+     * manager goes back to polling slowly. Must be less than the high mark.
+     */
+    int lowWatermark();
+}
@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses command line switches of the form "--name=value". A switch without
+ * a value (e.g. "--verbose") is treated as the boolean value "true".
+ */
+public class ServerOptions {
+    private final Map<String, String> values = new HashMap<>();
+
+    ServerOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            }
+
+            int equals = arg.indexOf('=');
+            if (equals == -1) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+    }
+
+    public String getString(String name, String defaultValue) {
+        String value = values.get(name);
+
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects an integer, got " + value);
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = values.get(name);
+
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -1,5 +1,7 @@
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Thread-safe queue implementation
@@ -17,6 +19,8 @@ public class SharedQueue<E>  implements Queue<E> {
     // capacity of -1 indicates no capacity limit
     private int capacity = -1;
 
+    private volatile Watermarks watermarks;
+
     SharedQueue() {
         this(-1);
     }
@@ -81,6 +85,7 @@ public class SharedQueue<E>  implements Queue<E> {
             this.notify();
         }
 
+        sizeChanged();
         return true;
     }
 
@@ -113,9 +118,203 @@ public class SharedQueue<E>  implements Queue<E> {
             notify();
         }
 
+        sizeChanged();
         return data;
     }
 
+    /**
+     * Removes up to {maxElements} items from the front of the queue without
+     * blocking, taking the head lock only once for the whole batch
+     * @param target collection the removed items are added to, in queue order
+     * @param maxElements the most items to remove
+     * @return the number of items removed
+     */
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        int drained = 0;
+
+        synchronized (head.lock) {
+            while (drained < maxElements) {
+                Node front = head.getNext();
+                if (front == null) {
+                    break;
+                }
+
+                synchronized (front.lock) {
+                    front.live = false;
+                    target.add(front.data);
+
+                    head.setNext(front.getNext());
+                }
+
+                drained++;
+            }
+
+            if (drained > 0) {
+                synchronized (sizeLock) {
+                    size -= drained;
+                }
+            }
+        }
+
+        if (drained > 0) {
+            synchronized (this) {
+                notify();
+            }
+
+            sizeChanged();
+        }
+
+        return drained;
+    }
+
+    /**
+     * Blocks until at least one item is available, then removes up to
+     * {maxElements} items
+     * @param maxElements the most items to remove
+     * @return the removed items in queue order, never empty
+     * @throws InterruptedException
+     */
+    public synchronized List<E> takeBatch(int maxElements) throws InterruptedException {
+        List<E> batch = new ArrayList<>(maxElements);
+
+        while (batch.isEmpty()) {
+            while (size() == 0) {
+                this.wait();
+            }
+
+            drainTo(batch, maxElements);
+        }
+
+        return batch;
+    }
+
+    /**
+     * takeBatch(maxElements) on behalf of a particular consumer, the same
+     * way take(consumer) is; this queue just calls takeBatch()
+     * @param consumer index of the calling worker
+     * @throws InterruptedException
+     */
+    public List<E> takeBatch(int consumer, int maxElements) throws InterruptedException {
+        return takeBatch(maxElements);
+    }
+
+    /**
+     * drainTo(target, maxElements) on behalf of a particular consumer
+     * @param consumer index of the calling worker
+     */
+    public int drainTo(int consumer, Collection<? super E> target, int maxElements) {
+        return drainTo(target, maxElements);
+    }
+
+    /**
+     * Blocking take on behalf of a particular consumer. Queues which keep
+     * per-consumer state use {consumer} to pick where to look first; this
+     * queue is shared by everyone so it just calls take().
+     * @param consumer index of the calling worker
+     * @return the next item
+     * @throws InterruptedException
+     */
+    public E take(int consumer) throws InterruptedException {
+        return take();
+    }
+
+    /**
+     * take(consumer) that gives up after {timeout}
+     * @param consumer index of the calling worker
+     * @return the next item, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    public synchronized E poll(int consumer, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E data = null;
+
+        while (data == null) {
+            while (size() == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            data = remove();
+        }
+
+        return data;
+    }
+
+    /**
+     * Tells the queue a consumer with the given index has started taking items
+     * @param consumer index of the worker
+     */
+    public void registerConsumer(int consumer) {
+    }
+
+    /**
+     * Tells the queue a consumer with the given index will take no more items
+     * @param consumer index of the worker
+     */
+    public void unregisterConsumer(int consumer) {
+    }
+
+    /**
+     * Has {listener} told when the queue grows to {high} items and when it
+     * shrinks back to {low}. Only the crossings are reported, and they are
+     * reported on the thread that added or removed the item that crossed, so
+     * the listener should be quick.
+     * @param high size at or above which the queue counts as filling up
+     * @param low size at or below which it counts as drained again
+     */
+    public void setWatermarks(int high, int low, WatermarkListener listener) {
+        if (low >= high) {
+            throw new IllegalArgumentException("low >= high");
+        }
+
+        watermarks = new Watermarks(high, low, listener);
+    }
+
+    /**
+     * Subclasses call this after every add or remove so watermark listeners
+     * hear about it. Costs a volatile read when nobody is listening.
+     */
+    protected final void sizeChanged() {
+        Watermarks current = watermarks;
+
+        if (current != null) {
+            current.check(size());
+        }
+    }
+
+    public interface WatermarkListener {
+        void aboveHighWatermark(int size);
+
+        void belowLowWatermark(int size);
+    }
+
+    private static class Watermarks {
+        private final int high, low;
+        private final WatermarkListener listener;
+        // whether the last crossing reported was the high one
+        private final AtomicBoolean above = new AtomicBoolean();
+
+        Watermarks(int high, int low, WatermarkListener listener) {
+            this.high = high;
+            this.low = low;
+            this.listener = listener;
+        }
+
+        void check(int size) {
+            if (size >= high) {
+                if (!above.get() && above.compareAndSet(false, true)) {
+                    listener.aboveHighWatermark(size);
+                }
+            } else if (size <= low && above.get() && above.compareAndSet(true, false)) {
+                listener.belowLowWatermark(size);
+            }
+        }
+    }
+
     /**
      * The calling thread will wait until an item has been removed from the queue
      */
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Writes replies straight to a blocking socket and closes the socket once
+ * the request is done.
+ */
+public class SocketResponder implements Responder {
+    private final Socket socket;
+    private final OutputStream output;
+
+    SocketResponder(Socket socket) throws IOException {
+        this.socket = socket;
+        this.output = socket.getOutputStream();
+    }
+
+    @Override
+    public void reply(byte[] data, int offset, int length) throws IOException {
+        output.write(data, offset, length);
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Only tells whether this side has closed the socket. Nothing reads a
+     * one-off connection once its command is queued, so a client that hangs
+     * up while its job waits isn't noticed and the job still runs. Keepalive
+     * connections are read to the end, and their pipeline reports the
+     * client gone instead.
+     */
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+}
@@ -0,0 +1,470 @@
+/**
+ * Evaluates a text command ("ADD,12,34") and encodes the reply line without
+ * allocating: the command is scanned in place, the numbers are parsed by
+ * hand and the reply is written as ASCII into a buffer that is reused for
+ * every command on the same thread. Malformed input is reported as a status
+ * code instead of an exception.
+ *
+ * The replies are byte for byte what the original split/parseInt/format
+ * implementation produced, including which inputs count as errors.
+ */
+public final class TextCodec {
+    private static final ThreadLocal<TextCodec> CODECS = ThreadLocal.withInitial(TextCodec::new);
+
+    private static final byte[] ERROR_PREFIX = ascii("Error occurred when executing command: ");
+    private static final byte[] UNKNOWN_PREFIX = ascii("Unknown command ");
+    private static final byte[] KILLING = ascii("Killing server");
+    private static final byte[] MIN_INT = ascii(Integer.toString(Integer.MIN_VALUE));
+    // failed BATCH items
+    private static final byte[] DIVIDE_BY_ZERO = ascii("DIV0");
+    private static final byte[] UNKNOWN_OP = ascii("UNKNOWN");
+    private static final byte[] BAD_NUMBER = ascii("BAD");
+    private static final String TIMEOUT_OPTION = "timeout=";
+
+    // what parse() returns for an operation it doesn't know, and for bad operands
+    public static final byte UNKNOWN = 0;
+    public static final byte MALFORMED = -1;
+
+    private byte[] buffer = new byte[256];
+    private int length;
+    // the most recently parsed operand
+    private int parsed;
+
+    // results of the last parse()
+    private byte op;
+    private int num1, num2;
+    private boolean noCache;
+    // ms the client will wait for the reply, or 0 if it didn't say
+    private int timeout;
+    // reused for every BATCH on this thread; created by the first
+    private Batch batch;
+
+    private TextCodec() {
+    }
+
+    /**
+     * The calling thread's codec
+     */
+    public static TextCodec get() {
+        return CODECS.get();
+    }
+
+    /**
+     * The reply to the last command evaluated, newline included. Only valid
+     * until the next call to {@link #evaluate}.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Works out which operation {command} is and parses its operands into
+     * {@link #num1()} and {@link #num2()}
+     * @return a {@link Command} operation, {@link #UNKNOWN} or {@link #MALFORMED}
+     */
+    public byte parse(String command) {
+        noCache = false;
+        timeout = 0;
+        op = scan(command);
+
+        return op;
+    }
+
+    private byte scan(String command) {
+        int end = command.length();
+        int opEnd = command.indexOf(',');
+        if (opEnd == -1) {
+            opEnd = end;
+        }
+
+        if (regionIs(command, 0, opEnd, "KILL")) {
+            return Command.KILL;
+        }
+
+        if (regionIs(command, 0, opEnd, "STATS")) {
+            return Command.STATS;
+        }
+
+        if (regionIs(command, 0, opEnd, "BATCH")) {
+            return Command.BATCH;
+        }
+
+        // the operands are parsed before the operation is looked at, so a
+        // bad number is an error even for an unknown command
+        if (opEnd == end) {
+            return MALFORMED;
+        }
+
+        int secondStart = opEnd + 1;
+        int secondEnd = command.indexOf(',', secondStart);
+        if (secondEnd == -1) {
+            return MALFORMED;
+        }
+
+        // fields after the operands are options, "nocache" and "timeout=MS",
+        // in any order; anything else is ignored
+        int thirdEnd = command.indexOf(',', secondEnd + 1);
+        if (thirdEnd == -1) {
+            thirdEnd = end;
+        }
+
+        if (!parseInt(command, secondStart, secondEnd)) {
+            return MALFORMED;
+        }
+        num1 = parsed;
+
+        if (!parseInt(command, secondEnd + 1, thirdEnd)) {
+            return MALFORMED;
+        }
+        num2 = parsed;
+
+        for (int fieldEnd = thirdEnd; fieldEnd < end; ) {
+            int fieldStart = fieldEnd + 1;
+            fieldEnd = command.indexOf(',', fieldStart);
+            if (fieldEnd == -1) {
+                fieldEnd = end;
+            }
+
+            if (regionIs(command, fieldStart, fieldEnd, "nocache")) {
+                noCache = true;
+            } else if (command.startsWith(TIMEOUT_OPTION, fieldStart)
+                    && parseInt(command, fieldStart + TIMEOUT_OPTION.length(), fieldEnd) && parsed > 0) {
+                timeout = parsed;
+            }
+        }
+
+        return arithmetic(command, 0, opEnd);
+    }
+
+    /**
+     * The arithmetic operation named by command[start, end), or {@link #UNKNOWN}
+     */
+    private static byte arithmetic(String command, int start, int end) {
+        if (regionIs(command, start, end, "ADD")) {
+            return Command.ADD;
+        } else if (regionIs(command, start, end, "SUB")) {
+            return Command.SUB;
+        } else if (regionIs(command, start, end, "DIV")) {
+            return Command.DIV;
+        } else if (regionIs(command, start, end, "MUL")) {
+            return Command.MUL;
+        }
+
+        return UNKNOWN;
+    }
+
+    public byte op() {
+        return op;
+    }
+
+    public int num1() {
+        return num1;
+    }
+
+    public int num2() {
+        return num2;
+    }
+
+    /**
+     * The deadline the last command parsed asked for with a "timeout=MS"
+     * field, in ms, or 0 if it didn't
+     */
+    public int timeout() {
+        return timeout;
+    }
+
+    /**
+     * Whether the last command parsed is arithmetic the result cache may
+     * answer. Anything with a "nocache" field bypasses the cache.
+     */
+    public boolean isCacheable() {
+        return !noCache && op >= Command.ADD && op <= Command.DIV;
+    }
+
+    /**
+     * Evaluates {command} and leaves the reply in {@link #buffer()}
+     * @return one of the {@link Command} statuses
+     */
+    public byte evaluate(String command) {
+        length = 0;
+
+        byte op = parse(command);
+        char symbol;
+        int result;
+
+        switch (op) {
+            case Command.KILL:
+                ThreadManager.requestKill();
+                append(KILLING);
+                return finish(Command.OK);
+            case Command.STATS:
+                append(Metrics.summary());
+                return finish(Command.OK);
+            case Command.BATCH:
+                return evaluateBatch(command);
+            case MALFORMED:
+                return error(command);
+            case Command.ADD:
+                symbol = '+';
+                result = num1 + num2;
+                break;
+            case Command.SUB:
+                symbol = '-';
+                result = num1 - num2;
+                break;
+            case Command.DIV:
+                if (num2 == 0) {
+                    error(command);
+                    return Command.DIVIDE_BY_ZERO;
+                }
+                symbol = '/';
+                result = num1 / num2;
+                break;
+            case Command.MUL:
+                symbol = '*';
+                result = num1 * num2;
+                break;
+            default:
+                append(UNKNOWN_PREFIX);
+                append(command);
+                return finish(Command.UNKNOWN_COMMAND);
+        }
+
+        // "%d + %d = %d"
+        appendInt(num1);
+        append(' ');
+        append(symbol);
+        append(' ');
+        appendInt(num2);
+        append(' ');
+        append('=');
+        append(' ');
+        appendInt(result);
+
+        return finish(Command.OK);
+    }
+
+    /**
+     * "BATCH,ADD,1,2,DIV,3,0" gives "3,DIV0": one result per operation, or
+     * DIV0, UNKNOWN or BAD for one that failed. Only a batch that doesn't
+     * split into whole operations, or has too many, is an error as a whole.
+     */
+    private byte evaluateBatch(String command) {
+        if (batch == null) {
+            batch = new Batch(Batch.MAX_SIZE);
+        }
+        batch.clear();
+
+        int end = command.length();
+        // at the comma before the next operation
+        int position = "BATCH".length();
+        if (position == end) {
+            return error(command);
+        }
+
+        while (position < end) {
+            int opEnd = command.indexOf(',', position + 1);
+            int firstEnd = opEnd == -1 ? -1 : command.indexOf(',', opEnd + 1);
+            if (firstEnd == -1) {
+                return error(command);
+            }
+
+            int secondEnd = command.indexOf(',', firstEnd + 1);
+            if (secondEnd == -1) {
+                secondEnd = end;
+            }
+
+            byte op = arithmetic(command, position + 1, opEnd);
+            long first = 0;
+            long second = 0;
+
+            if (parseInt(command, opEnd + 1, firstEnd)) {
+                first = parsed;
+
+                if (parseInt(command, firstEnd + 1, secondEnd)) {
+                    second = parsed;
+                } else {
+                    op = Batch.MALFORMED;
+                }
+            } else {
+                op = Batch.MALFORMED;
+            }
+
+            if (!batch.add(op, first, second)) {
+                return error(command);
+            }
+            position = secondEnd;
+        }
+
+        batch.evaluate();
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                append(',');
+            }
+
+            switch (batch.getStatus(i)) {
+                case Command.OK:
+                    // the operands are ints, so this is the int arithmetic the
+                    // single commands do
+                    appendInt((int) batch.getResult(i));
+                    break;
+                case Command.DIVIDE_BY_ZERO:
+                    append(DIVIDE_BY_ZERO);
+                    break;
+                case Command.BAD_ARGUMENT:
+                    append(BAD_NUMBER);
+                    break;
+                default:
+                    append(UNKNOWN_OP);
+            }
+        }
+
+        return finish(Command.OK);
+    }
+
+    private byte error(String command) {
+        length = 0;
+        append(ERROR_PREFIX);
+        append(command);
+
+        return finish(Command.BAD_ARGUMENT);
+    }
+
+    private byte finish(byte status) {
+        append('\n');
+
+        return status;
+    }
+
+    private static boolean regionIs(String command, int start, int end, String word) {
+        return end - start == word.length() && command.regionMatches(start, word, 0, word.length());
+    }
+
+    /**
+     * Integer.parseInt over command[start, end), leaving the value in
+     * {parsed}. Accumulates negatively like the JDK so Integer.MIN_VALUE
+     * parses without overflowing.
+     * @return false where parseInt would have thrown
+     */
+    private boolean parseInt(String command, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        int i = start;
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+        char first = command.charAt(i);
+
+        if (first < '0') {
+            if (first == '-') {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            } else if (first != '+') {
+                return false;
+            }
+
+            if (end - start == 1) {
+                return false;
+            }
+            i++;
+        }
+
+        int multiplyMin = limit / 10;
+        int result = 0;
+
+        while (i < end) {
+            int digit = Character.digit(command.charAt(i++), 10);
+
+            if (digit < 0 || result < multiplyMin) {
+                return false;
+            }
+            result *= 10;
+
+            if (result < limit + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+
+        parsed = negative ? result : -result;
+        return true;
+    }
+
+    private void appendInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            append(MIN_INT);
+            return;
+        }
+
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Appends {text} as US-ASCII, with '?' for anything outside it as
+     * String.getBytes would
+     */
+    private void append(String text) {
+        int count = text.length();
+        ensureCapacity(count);
+
+        for (int i = 0; i < count; i++) {
+            char c = text.charAt(i);
+            buffer[length++] = c < 0x80 ? (byte) c : (byte) '?';
+
+            if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // a surrogate pair is one character, so one '?'
+                i++;
+            }
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+
+        return bytes;
+    }
+}
@@ -1,87 +1,100 @@
 import java.net.ServerSocket;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.List;
 
 /**
  * Created by Lander Brandt on 2/18/16.
  */
 public class ThreadManager implements Runnable {
-    // frequency in milliseconds
+    // frequency in milliseconds while the queue is above the policy's low watermark
     private static final int POLL_FREQUENCY = 100;
-    private static final int INITIAL_WORKERS = 5;
+    // frequency in milliseconds otherwise; watermark events wake the manager sooner
+    private static final int IDLE_POLL_FREQUENCY = 1000;
+    static final int INITIAL_WORKERS = 5;
     public static boolean killServer = false;
 
-    ServerSocket socket;
-    SharedQueue _queue;
-    ThreadPool _pool;
+    // every listening socket, closed on shutdown to stop the accept loops
+    List<ServerSocket> sockets;
+    SharedQueue<Job> _queue;
+    JobPool _pool;
 
-    private int t1, t2;
+    private final ScalingPolicy policy;
     private boolean _killed;
 
-    ThreadManager(ServerSocket socket, ThreadPool pool, SharedQueue queue, int t1, int t2) {
-        this.t1 = t1;
-        this.t2 = t2;
+    // set by watermark events and KILL so a wakeup isn't lost while the
+    // manager is busy; static like killServer, as there is one manager
+    private static final Object wakeup = new Object();
+    private static boolean woken;
+
+    ThreadManager(List<ServerSocket> sockets, JobPool pool, SharedQueue<Job> queue, ScalingPolicy policy) {
+        this.policy = policy;
         _pool = pool;
         _queue = queue;
-        this.socket = socket;
+        this.sockets = sockets;
 
         // By default set the number of active workers to t1/2
         _pool.growActiveWorkers(INITIAL_WORKERS);
+
+        _queue.setWatermarks(policy.highWatermark(), policy.lowWatermark(), new SharedQueue.WatermarkListener() {
+            @Override
+            public void aboveHighWatermark(int size) {
+                wakeUp();
+            }
+
+            @Override
+            public void belowLowWatermark(int size) {
+                wakeUp();
+            }
+        });
+    }
+
+    /**
+     * Makes the manager check the queue now rather than at its next poll
+     */
+    private static void wakeUp() {
+        synchronized (wakeup) {
+            woken = true;
+            wakeup.notify();
+        }
+    }
+
+    /**
+     * Shuts the server down, waking the manager so it doesn't finish an
+     * idle poll first
+     */
+    static void requestKill() {
+        killServer = true;
+        wakeUp();
     }
 
     @Override
     public void run() {
-        int jobsPreviousIteration = 0;
-        int previousThreshold = 0;
         while (!isKilled() && !killServer) {
             int jobs = _queue.size();
             if (jobs > 0) {
-                log("# Jobs: " + jobs);
+                Log.debug("ThreadManager", "# Jobs: ", jobs);
             }
 
-            int newWorkerCount = _pool.activeWorkers(),
-                    oldWorkerCount = newWorkerCount;
-
-            String message = "";
-
-            if (jobs <= t1) {
-                // if queue size is less than the first threshold -- this should be the lowest number of workers possible
-                message = "queue size is less than lowest threshold -- setting to minimum number of workers: " + INITIAL_WORKERS;
-                _pool.setNumActiveWorkers(INITIAL_WORKERS);
-                previousThreshold = 0;
-            } else if (jobsPreviousIteration < jobs) {
-                // jobs are growing
-                if (jobs < t2 && previousThreshold < 1) {
-                    newWorkerCount *= 2;
-                    message = "queue size is less than t2 -- doubling workers: " + newWorkerCount;
-                    _pool.setNumActiveWorkers(newWorkerCount);
-                    previousThreshold = 1;
-                } else if (jobs > t2) {
-                    newWorkerCount *= 2;
-                    message = "queue size is greater than t2 -- doubling workers: " + newWorkerCount;
-                    _pool.setNumActiveWorkers(newWorkerCount);
-                    previousThreshold = 2;
-                }
-            } else if (jobsPreviousIteration > jobs && jobsPreviousIteration < t2 && previousThreshold > 1) {
-                // jobs are shrinking
-                newWorkerCount /= 2;
-                message = "queue size is less than t2 -- halving workers: " + newWorkerCount;
-                _pool.setNumActiveWorkers(newWorkerCount);
-                previousThreshold = 1;
-            }
-
-            // the pool may set the number of active workers to capacity, so don't trust the # of jobs above
-            jobsPreviousIteration = _pool.activeWorkers();
+            int workers = _pool.activeWorkers();
+            int target = policy.targetWorkers(jobs, workers, _pool.capacity());
 
             // only log a message if we actually did something
-            if (newWorkerCount != oldWorkerCount) {
-                log(message);
+            if (target != workers) {
+                log(policy.reason());
+                _pool.setNumActiveWorkers(target);
             }
 
-            try {
-                Thread.sleep(POLL_FREQUENCY);
-            } catch (InterruptedException ignored) {
+            // poll while there's a backlog; when idle only the occasional
+            // safety net check, in case a watermark crossing was missed
+            synchronized (wakeup) {
+                try {
+                    if (!woken) {
+                        wakeup.wait(jobs > policy.lowWatermark() ? POLL_FREQUENCY : IDLE_POLL_FREQUENCY);
+                    }
+                } catch (InterruptedException ignored) {
+                }
+
+                woken = false;
             }
         }
 
@@ -93,9 +106,11 @@ public class ThreadManager implements Runnable {
         killServer = true;
         kill();
 
-        try {
-            socket.close();
-        } catch (Exception ignored) {
+        for (ServerSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (Exception ignored) {
+            }
         }
     }
 
@@ -105,11 +120,10 @@ public class ThreadManager implements Runnable {
 
     public void kill() {
         this._killed = true;
+        wakeUp();
     }
 
     private void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
-
-        System.out.printf("[ThreadManager] %s at %s\n", message, dt.format(new Date()));
+        Log.info("ThreadManager", message);
     }
 }
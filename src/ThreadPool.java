@@ -1,27 +1,55 @@
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Lander Brandt on 2/18/16.
  */
-public class ThreadPool {
+public class ThreadPool implements JobPool {
     final int _capacity;
     private int numActiveThreads;
     private final Worker[] workers;
     private boolean _stopped = false;
     private final SharedQueue<Job> queue;
+    private final int batchSize;
+    // 0 means workers wait for jobs forever
+    private int idleTimeout = 0;
+    private int coreWorkers = 0;
 
     public ThreadPool(int capacity, SharedQueue<Job> queue) {
+        this(capacity, queue, 1);
+    }
+
+    /**
+     * @param batchSize the most jobs each worker takes off the queue at once
+     */
+    public ThreadPool(int capacity, SharedQueue<Job> queue, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+
         this._capacity = capacity;
         this.workers = new Worker[capacity];
         this.queue = queue;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Lets workers beyond the first {coreWorkers} exit on their own after
+     * {idleTimeout} milliseconds without a job. Applies to workers started
+     * after the call.
+     * @param idleTimeout 0 to never time out
+     */
+    public synchronized void setIdleTimeout(int idleTimeout, int coreWorkers) {
+        this.idleTimeout = idleTimeout;
+        this.coreWorkers = coreWorkers;
     }
 
     /**
      * The maximum number of workers
      * @return
      */
+    @Override
     public int capacity() {
         return this._capacity;
     }
@@ -30,6 +58,7 @@ public class ThreadPool {
      * Grows the number of active workers to {count}
      * @param count the number of workers that should exist
      */
+    @Override
     public synchronized void growActiveWorkers(int count) {
         if (isStopped()) {
             throw new IllegalStateException("Cannot grow active workers in a stopped state");
@@ -40,16 +69,19 @@ public class ThreadPool {
         }
 
         log(String.format("Growing workers from %d to %d", numActiveThreads, count));
+        Metrics.poolResized(numActiveThreads, count);
 
         int neededWorkers = count - numActiveThreads, lastFreeIndex = 0;
 
         for (int i = 0; i < neededWorkers; i++) {
             for (int j = lastFreeIndex; j < workers.length; j++) {
-                if (workers[j] != null) {
+                // a retired worker keeps its slot until its thread is gone, so
+                // a new worker never shares a queue lane with it
+                if (workers[j] != null && (!workers[j].isKilled() || workers[j].isAlive())) {
                     continue;
                 }
 
-                workers[j] = new Worker(j, queue);
+                workers[j] = new Worker(j, queue, batchSize, this, idleTimeout);
                 workers[j].start();
                 workers[j].setName("Worker " + j);
                 lastFreeIndex = j;
@@ -61,7 +93,10 @@ public class ThreadPool {
     }
 
     /**
-     * Shrinks the number of active workers to {count}
+     * Shrinks the number of active workers to {count}. Returns as soon as the
+     * surplus workers have been told to retire: idle ones are interrupted and
+     * exit straight away, busy ones exit after their current job. Use
+     * {@link #retired()} to wait for them.
      * @param count the number of workers that should exist
      */
     public synchronized void shrinkActiveWorkers(int count) {
@@ -74,10 +109,10 @@ public class ThreadPool {
         }
 
         log(String.format("Shrinking workers from %d to %d", numActiveThreads, count));
+        Metrics.poolResized(numActiveThreads, count);
 
-        // Notify waiting threads that they should exit
+        // Retire waiting workers first, since they have no job to finish
         int killed = 0, killNum = numActiveThreads - count;
-        ArrayList<Worker> killedWorkers = new ArrayList<>(killNum);
 
         for (int i = 0; i < workers.length; i++) {
             if (killed == killNum) {
@@ -86,15 +121,12 @@ public class ThreadPool {
 
             Worker worker = workers[i];
 
-            if (worker == null) {
+            if (worker == null || worker.isKilled()) {
                 continue;
             }
 
-            if (worker.getState() == Thread.State.WAITING) {
-                worker.kill();
-                workers[i] = null;
-
-                killedWorkers.add(worker);
+            if (worker.isWaiting()) {
+                worker.retire();
                 killed++;
             }
         }
@@ -109,34 +141,62 @@ public class ThreadPool {
                 }
 
                 Worker worker = workers[i];
-                if (worker == null) {
+                if (worker == null || worker.isKilled()) {
                     continue;
                 }
 
-                worker.kill();
-                workers[i] = null;
-                killedWorkers.add(worker);
-
+                worker.retire();
                 killed++;
             }
         }
 
-        // Wait for all threads to exit before we release the lock on `this`
-        while (killedWorkers.size() > 0) {
-            for (int i = 0; i < killedWorkers.size(); i++) {
-                if (!killedWorkers.get(i).isAlive()) {
-                    killedWorkers.remove(i);
-                }
+        numActiveThreads -= killed;
+    }
+
+    /**
+     * Called by a worker that has gone its idle timeout without a job. Retires
+     * it unless the pool is already down to its core workers.
+     * @return whether the worker was retired
+     */
+    synchronized boolean retireIdleWorker(Worker worker) {
+        if (worker.isKilled()) {
+            return true;
+        }
+
+        if (isStopped() || numActiveThreads <= coreWorkers) {
+            return false;
+        }
+
+        log(String.format("%s idle for %dms -- shrinking workers from %d to %d",
+                worker.getName(), idleTimeout, numActiveThreads, numActiveThreads - 1));
+        Metrics.poolResized(numActiveThreads, numActiveThreads - 1);
+
+        worker.kill();
+        numActiveThreads--;
+
+        return true;
+    }
+
+    /**
+     * Completes once every worker retired so far has exited
+     */
+    public synchronized CompletableFuture<Void> retired() {
+        List<CompletableFuture<Void>> exits = new ArrayList<>();
+
+        for (Worker worker : workers) {
+            if (worker != null && worker.isKilled()) {
+                exits.add(worker.exited());
             }
         }
 
-        numActiveThreads -= killed;
+        return CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]));
     }
 
     /**
      * Sets the number of job threads to {count}
      * @param count
      */
+    @Override
     public synchronized void setNumActiveWorkers(int count) {
         if (count > capacity()) {
             log("count exceeds capacity -- using capacity instead");
@@ -161,6 +221,7 @@ public class ThreadPool {
      * Returns the number of worker threads available
      * @return
      */
+    @Override
     public synchronized int activeWorkers() {
         return numActiveThreads;
     }
@@ -168,19 +229,32 @@ public class ThreadPool {
     /**
      * Stops the thread pool from growing/shrinking and kills all existing workers
      */
+    @Override
     public synchronized void stop() {
         log("Stop received");
         this._stopped = true;
         killWorkers();
     }
 
+    @Override
     public synchronized boolean isStopped() {
         return this._stopped;
     }
 
-    public synchronized void join() {
-        for (int i = 0; i < workers.length; i++) {
-            Worker worker = workers[i];
+    /**
+     * Waits for every worker, including retired ones still finishing a job,
+     * to exit. Doesn't hold the pool's lock while waiting, since an idle
+     * worker may need it to retire.
+     */
+    @Override
+    public void join() {
+        Worker[] current;
+        synchronized (this) {
+            current = workers.clone();
+        }
+
+        for (int i = 0; i < current.length; i++) {
+            Worker worker = current[i];
 
             if (worker == null) {
                 continue;
@@ -192,26 +266,28 @@ public class ThreadPool {
                 continue;
             }
 
-            workers[i] = null;
+            synchronized (this) {
+                if (workers[i] == worker) {
+                    workers[i] = null;
+                }
+            }
         }
     }
+
     private synchronized void killWorkers() {
         log("Killing all workers");
         for (Worker worker : workers) {
-            if (worker == null) {
+            if (worker == null || worker.isKilled()) {
                 continue;
             }
 
-            worker.kill();
-            worker.interrupt();
+            worker.retire();
 
             numActiveThreads--;
         }
     }
 
     private void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
-
-        System.out.printf("[ThreadPool] %s at %s\n", message, dt.format(new Date()));
+        Log.info("ThreadPool", message);
     }
 }
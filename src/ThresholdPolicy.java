@@ -0,0 +1,67 @@
+/**
+ * The original scaling rule: drop back to the minimum while the queue is at
+ * or below t1, double the pool while it grows past t1 and again past t2, and
+ * halve it once it falls back under t2.
+ */
+public class ThresholdPolicy implements ScalingPolicy {
+    private final int t1, t2;
+    private final int minWorkers;
+
+    private int jobsPreviousIteration = 0;
+    private int previousThreshold = 0;
+    private String reason = "";
+
+    ThresholdPolicy(int t1, int t2, int minWorkers) {
+        this.t1 = t1;
+        this.t2 = t2;
+        this.minWorkers = minWorkers;
+    }
+
+    @Override
+    public int targetWorkers(int jobs, int activeWorkers, int capacity) {
+        int newWorkerCount = activeWorkers;
+
+        if (jobs <= t1) {
+            // if queue size is less than the first threshold -- this should be the lowest number of workers possible
+            reason = "queue size is less than lowest threshold -- setting to minimum number of workers: " + minWorkers;
+            newWorkerCount = minWorkers;
+            previousThreshold = 0;
+        } else if (jobsPreviousIteration < jobs) {
+            // jobs are growing
+            if (jobs < t2 && previousThreshold < 1) {
+                newWorkerCount *= 2;
+                reason = "queue size is less than t2 -- doubling workers: " + newWorkerCount;
+                previousThreshold = 1;
+            } else if (jobs > t2) {
+                newWorkerCount *= 2;
+                reason = "queue size is greater than t2 -- doubling workers: " + newWorkerCount;
+                previousThreshold = 2;
+            }
+        } else if (jobsPreviousIteration > jobs && jobsPreviousIteration < t2 && previousThreshold > 1) {
+            // jobs are shrinking
+            newWorkerCount /= 2;
+            reason = "queue size is less than t2 -- halving workers: " + newWorkerCount;
+            previousThreshold = 1;
+        }
+
+        jobsPreviousIteration = jobs;
+
+        // the pool would clamp this anyway, but then every poll would look like a change
+        return Math.min(newWorkerCount, capacity);
+    }
+
+    @Override
+    public String reason() {
+        return reason;
+    }
+
+    @Override
+    public int highWatermark() {
+        return t1 + 1;
+    }
+
+    @Override
+    public int lowWatermark() {
+        return t1;
+    }
+}
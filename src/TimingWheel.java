@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after a delay, for very many timers that are nearly all
+ * cancelled before they fire, such as job deadlines. Scheduling and
+ * cancelling are O(1) whatever the number of timers.
+ *
+ * Time advances in ticks of {tickMillis}. The wheel has {@link #LEVELS}
+ * levels of {@link #SLOTS} slots, each level's slots spanning a whole turn of
+ * the level below: with 10ms ticks, level 0 holds timers due in the next
+ * 640ms, level 1 the next 41s, and so on. A timer goes in the lowest level
+ * that reaches its deadline, and whenever the level below completes a turn
+ * the next slot up is cascaded down, so a timer only moves a few times before
+ * it fires from level 0. Delays beyond the top level's reach (about two days
+ * with 10ms ticks) are cut to it.
+ *
+ * Tasks run on the wheel's own thread, so they should be short. The thread
+ * sleeps while no timer is pending.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startedAt = System.nanoTime();
+    private final Thread thread;
+
+    // guarded by this
+    // the head of each slot's list, level by level
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    private long tick = 0;
+    private int size = 0;
+    private boolean stopped = false;
+
+    TimingWheel(int tickMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis < 1");
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.thread = new Thread(this::run, "Timing wheel");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs {task} on the wheel's thread once {delayMillis} have passed,
+     * rounded up to a whole tick
+     */
+    public Timer schedule(long delayMillis, Runnable task) {
+        long due = System.nanoTime() - startedAt + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+
+        synchronized (this) {
+            if (size == 0) {
+                // nothing to cascade, so an idle wheel can jump straight to now
+                tick = Math.max(tick, elapsedTicks());
+            }
+
+            Timer timer = new Timer(task);
+            timer.deadline = Math.min(Math.max((due + tickNanos - 1) / tickNanos, tick + 1), tick + MAX_TICKS);
+            place(timer);
+
+            if (size++ == 0) {
+                notifyAll();
+            }
+
+            return timer;
+        }
+    }
+
+    /**
+     * Timers scheduled and neither fired nor cancelled
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops the thread; pending timers never fire
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+
+        thread.join();
+    }
+
+    private void run() {
+        List<Timer> due = new ArrayList<>();
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!stopped && size == 0) {
+                        wait();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+
+                    long now = elapsedTicks();
+                    if (now <= tick) {
+                        TimeUnit.NANOSECONDS.timedWait(this, startedAt + (tick + 1) * tickNanos - System.nanoTime());
+                        continue;
+                    }
+
+                    // catch up on every tick missed, in case we slept late
+                    while (tick < now && size > 0) {
+                        advance(due);
+                    }
+                    tick = Math.max(tick, now);
+                }
+
+                for (Timer timer : due) {
+                    try {
+                        timer.task.run();
+                    } catch (RuntimeException e) {
+                        Log.warn("TimingWheel", "Timer task failed: ", e);
+                    }
+                }
+                due.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.warn("TimingWheel", "Interrupted with timers pending: ", size());
+        }
+    }
+
+    /**
+     * Moves on one tick, cascading any level whose turn has come round and
+     * collecting the timers now due into {due}. Caller holds the lock.
+     */
+    private void advance(List<Timer> due) {
+        tick++;
+
+        // outermost first, so a timer can fall all the way down in one tick
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+
+            int index = level * SLOTS + slot(tick, level);
+            Timer timer = slots[index];
+            slots[index] = null;
+
+            while (timer != null) {
+                Timer next = timer.next;
+                place(timer);
+                timer = next;
+            }
+        }
+
+        int index = slot(tick, 0);
+        for (Timer timer = slots[index]; timer != null; timer = timer.next) {
+            timer.index = -1;
+            due.add(timer);
+            size--;
+        }
+        slots[index] = null;
+    }
+
+    /**
+     * Links {timer} into the lowest level that reaches its deadline. Caller
+     * holds the lock.
+     */
+    private void place(Timer timer) {
+        long ticks = timer.deadline - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && ticks >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+
+        int index = level * SLOTS + slot(timer.deadline, level);
+        timer.index = index;
+        timer.prev = null;
+        timer.next = slots[index];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[index] = timer;
+    }
+
+    private static int slot(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - startedAt) / tickNanos;
+    }
+
+    /**
+     * A scheduled task
+     */
+    public class Timer {
+        private final Runnable task;
+        private long deadline;
+        // guarded by the wheel
+        private Timer prev;
+        private Timer next;
+        // the slot the timer is linked into, or -1 once fired or cancelled
+        private int index = -1;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running
+         * @return false if it has already run or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (index == -1) {
+                    return false;
+                }
+
+                if (prev != null) {
+                    prev.next = next;
+                } else {
+                    slots[index] = next;
+                }
+                if (next != null) {
+                    next.prev = prev;
+                }
+
+                index = -1;
+                prev = null;
+                next = null;
+                size--;
+
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool which runs every job on its own virtual thread instead of handing it
+ * to one of a fixed set of platform workers. Blocking socket writes in a job
+ * then only park the virtual thread, not a carrier thread.
+ *
+ * Since threads are cheap here the number of "active workers" is really a
+ * concurrency limit: a dispatcher only takes a job off the queue once it
+ * holds a permit, so the thread manager's grow/shrink decisions resize the
+ * permit count rather than starting or killing threads.
+ *
+ * Virtual threads need Java 21. On older runtimes the pool logs a warning and
+ * falls back to short-lived platform threads with the same permit limit.
+ * Nothing is taken off the queue until {@link #start}.
+ */
+public class VirtualThreadPool implements JobPool {
+    // how long join() waits for in-flight jobs after the dispatcher exits
+    private static final int JOIN_TIMEOUT = 5000;
+    private static final ThreadFactory THREAD_FACTORY = createThreadFactory();
+
+    private final int capacity;
+    private final SharedQueue<Job> queue;
+    private final ResizableSemaphore permits = new ResizableSemaphore();
+    private final Thread dispatcher;
+    private int permitLimit = 0;
+    private boolean stopped = false;
+
+    public VirtualThreadPool(int capacity, SharedQueue<Job> queue) {
+        this.capacity = capacity;
+        this.queue = queue;
+        this.dispatcher = new Thread(this::dispatch, "Virtual thread dispatcher");
+    }
+
+    /**
+     * Starts the dispatcher taking jobs off the queue
+     */
+    public void start() {
+        dispatcher.start();
+    }
+
+    /**
+     * Factory for virtual threads when the runtime supports them, otherwise
+     * for plain platform threads
+     */
+    static ThreadFactory threadFactory() {
+        return THREAD_FACTORY;
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log("Virtual threads are not available on Java " + System.getProperty("java.version")
+                    + " -- using platform threads");
+
+            return Thread::new;
+        }
+    }
+
+    private void dispatch() {
+        log("Dispatcher starting");
+
+        while (!isStopped()) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                permits.release();
+                continue;
+            }
+
+            if (!job.markDequeued()) {
+                permits.release();
+                continue;
+            }
+
+            Thread thread = THREAD_FACTORY.newThread(() -> {
+                try {
+                    // simulate execution time, same as a Worker does
+                    Thread.sleep((int)(Math.random() * 1000));
+                    job.run();
+                } catch (InterruptedException ignored) {
+                } finally {
+                    permits.release();
+                }
+            });
+            thread.start();
+        }
+
+        log("Dispatcher done");
+    }
+
+    /**
+     * The highest concurrency limit allowed
+     */
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Raises the concurrency limit to {count}
+     * @param count the number of jobs allowed to run at once
+     */
+    @Override
+    public synchronized void growActiveWorkers(int count) {
+        if (isStopped()) {
+            throw new IllegalStateException("Cannot grow active workers in a stopped state");
+        }
+
+        if (count > capacity()) {
+            throw new IllegalArgumentException("count > capacity");
+        }
+
+        log(String.format("Raising concurrency limit from %d to %d", permitLimit, count));
+        Metrics.poolResized(permitLimit, count);
+        permits.release(count - permitLimit);
+        permitLimit = count;
+    }
+
+    /**
+     * Lowers the concurrency limit to {count}. Jobs already running are left
+     * alone; the limit takes effect as they finish.
+     * @param count the number of jobs allowed to run at once
+     */
+    public synchronized void shrinkActiveWorkers(int count) {
+        if (isStopped()) {
+            throw new IllegalStateException("Cannot shrink active workers in a stopped state");
+        }
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count > 0");
+        }
+
+        log(String.format("Lowering concurrency limit from %d to %d", permitLimit, count));
+        Metrics.poolResized(permitLimit, count);
+        permits.reducePermits(permitLimit - count);
+        permitLimit = count;
+    }
+
+    @Override
+    public synchronized void setNumActiveWorkers(int count) {
+        if (count > capacity()) {
+            log("count exceeds capacity -- using capacity instead");
+            count = capacity();
+        }
+
+        if (count == permitLimit) {
+            return;
+        }
+
+        if (count > permitLimit) {
+            growActiveWorkers(count);
+        } else {
+            shrinkActiveWorkers(count);
+        }
+
+        log("Concurrency limit: " + activeWorkers());
+    }
+
+    /**
+     * Returns the current concurrency limit
+     * @return
+     */
+    @Override
+    public synchronized int activeWorkers() {
+        return permitLimit;
+    }
+
+    @Override
+    public synchronized void stop() {
+        log("Stop received");
+        stopped = true;
+        dispatcher.interrupt();
+    }
+
+    @Override
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Waits for the dispatcher to exit and for in-flight jobs to finish
+     */
+    @Override
+    public void join() {
+        try {
+            dispatcher.join();
+
+            int limit = activeWorkers();
+            if (limit > 0 && permits.tryAcquire(limit, JOIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                permits.release(limit);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void log(String message) {
+        Log.info("VirtualThreadPool", message);
+    }
+
+    /**
+     * Exposes {@link Semaphore#reducePermits} so the limit can shrink without
+     * waiting for running jobs
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore() {
+            super(0);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
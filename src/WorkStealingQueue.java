@@ -0,0 +1,346 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Queue made of one deque per worker. Producers spread items over the deques
+ * of the workers that are currently registered, either round-robin or by a
+ * key such as the client number. A worker takes from the head of its own
+ * deque and, when that is empty, steals from the tail of somebody else's,
+ * so workers only contend with each other when they run dry.
+ *
+ * size() still reports the total across every deque so the thread manager
+ * can make the same scaling decisions as with a single shared queue.
+ *
+ * @param <E>
+ */
+public class WorkStealingQueue<E> extends SharedQueue<E> {
+    private final ConcurrentLinkedDeque<E>[] lanes;
+    // routes an item to a lane; null means round-robin
+    private final ToIntFunction<E> key;
+    private final int capacity;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger nextLane = new AtomicInteger();
+    // lanes which currently have a worker taking from them
+    private volatile int[] owners = new int[0];
+
+    private final Object notEmpty = new Object();
+    private final Object removed = new Object();
+    private final AtomicInteger takeWaiters = new AtomicInteger();
+    private final AtomicInteger removeWaiters = new AtomicInteger();
+    // items ever removed, so a remove waiter can tell it wasn't woken spuriously
+    private final AtomicLong removals = new AtomicLong();
+
+    /**
+     * @param capacity most items across all lanes, or -1 for no limit
+     * @param laneCount number of lanes; worker indices must be below this
+     * @param key maps an item to a lane, or null to distribute round-robin
+     */
+    WorkStealingQueue(int capacity, int laneCount, ToIntFunction<E> key) {
+        super(capacity);
+
+        this.capacity = capacity;
+        this.key = key;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedDeque<E>[] lanes = (ConcurrentLinkedDeque<E>[]) new ConcurrentLinkedDeque<?>[laneCount];
+        this.lanes = lanes;
+
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    @Override
+    public synchronized void registerConsumer(int lane) {
+        int[] current = owners;
+        int[] updated = new int[current.length + 1];
+
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = lane;
+        owners = updated;
+    }
+
+    @Override
+    public synchronized void unregisterConsumer(int lane) {
+        int[] current = owners;
+        int[] updated = new int[Math.max(current.length - 1, 0)];
+
+        int j = 0;
+        for (int owner : current) {
+            if (owner != lane && j < updated.length) {
+                updated[j++] = owner;
+            }
+        }
+        owners = updated;
+
+        if (updated.length == 0) {
+            // nobody left to hand the lane to; any later take() will steal from it
+            return;
+        }
+
+        // hand whatever is left in the lane to the workers still around
+        E data;
+        while ((data = lanes[lane].pollFirst()) != null) {
+            lanes[pickLane(data)].addLast(data);
+        }
+    }
+
+    /**
+     * Adds an item to the lane of one of the registered workers
+     * @param element element to add
+     * @return false if the queue is at capacity
+     */
+    @Override
+    public boolean add(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        if (capacity != -1) {
+            int current;
+            do {
+                current = size.get();
+                if (current >= capacity) {
+                    return false;
+                }
+            } while (!size.compareAndSet(current, current + 1));
+        } else {
+            size.incrementAndGet();
+        }
+
+        lanes[pickLane(element)].addLast(element);
+
+        if (takeWaiters.get() > 0) {
+            synchronized (notEmpty) {
+                notEmpty.notify();
+            }
+        }
+
+        sizeChanged();
+        return true;
+    }
+
+    private int pickLane(E element) {
+        int[] current = owners;
+
+        if (current.length == 0) {
+            return 0;
+        }
+
+        int hash = key == null ? nextLane.getAndIncrement() : key.applyAsInt(element);
+
+        return current[Math.floorMod(hash, current.length)];
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return add(e);
+    }
+
+    /**
+     * Removes an item from any lane
+     * @return an item, or null if every lane is empty
+     */
+    @Override
+    public E remove() {
+        return poll(ThreadLocalRandom.current().nextInt(lanes.length));
+    }
+
+    @Override
+    public E poll() {
+        return remove();
+    }
+
+    /**
+     * Takes from the head of {lane}, then steals from the tails of the others
+     */
+    private E poll(int lane) {
+        E data = lanes[lane].pollFirst();
+
+        if (data == null) {
+            // start stealing at a random victim so thieves don't all pile onto lane 0
+            int start = ThreadLocalRandom.current().nextInt(lanes.length);
+
+            for (int i = 0; i < lanes.length && data == null; i++) {
+                int victim = (start + i) % lanes.length;
+
+                if (victim != lane) {
+                    data = lanes[victim].pollLast();
+                }
+            }
+        }
+
+        if (data != null) {
+            removedOne(1);
+        }
+
+        return data;
+    }
+
+    private void removedOne(int count) {
+        size.addAndGet(-count);
+        removals.addAndGet(count);
+
+        if (removeWaiters.get() > 0) {
+            synchronized (removed) {
+                removed.notifyAll();
+            }
+        }
+
+        sizeChanged();
+    }
+
+    /**
+     * Blocking take for a worker that owns {lane}
+     * @param lane the calling worker's index
+     * @return an item from the worker's own lane, or one stolen from another
+     * @throws InterruptedException
+     */
+    @Override
+    public E take(int lane) throws InterruptedException {
+        E data = poll(lane);
+        if (data != null) {
+            return data;
+        }
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                while ((data = poll(lane)) == null) {
+                    notEmpty.wait();
+                }
+
+                return data;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public E poll(int lane, long timeout, TimeUnit unit) throws InterruptedException {
+        E data = poll(lane);
+        if (data != null) {
+            return data;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                while ((data = poll(lane)) == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(notEmpty, remaining);
+                }
+
+                return data;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return take(ThreadLocalRandom.current().nextInt(lanes.length));
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        return drainTo(ThreadLocalRandom.current().nextInt(lanes.length), target, maxElements);
+    }
+
+    /**
+     * Drains the head of {lane} first, then steals from the tails of the
+     * others, like take(lane)
+     */
+    @Override
+    public int drainTo(int lane, Collection<? super E> target, int maxElements) {
+        int drained = 0;
+
+        E data;
+        while (drained < maxElements && (data = lanes[lane].pollFirst()) != null) {
+            target.add(data);
+            drained++;
+        }
+
+        // start stealing at a random victim so thieves don't all pile onto lane 0
+        int start = ThreadLocalRandom.current().nextInt(lanes.length);
+        for (int i = 0; i < lanes.length && drained < maxElements; i++) {
+            int victim = (start + i) % lanes.length;
+            if (victim == lane) {
+                continue;
+            }
+
+            while (drained < maxElements && (data = lanes[victim].pollLast()) != null) {
+                target.add(data);
+                drained++;
+            }
+        }
+
+        if (drained > 0) {
+            removedOne(drained);
+        }
+
+        return drained;
+    }
+
+    @Override
+    public List<E> takeBatch(int maxElements) throws InterruptedException {
+        return takeBatch(ThreadLocalRandom.current().nextInt(lanes.length), maxElements);
+    }
+
+    @Override
+    public List<E> takeBatch(int lane, int maxElements) throws InterruptedException {
+        List<E> batch = new ArrayList<>(maxElements);
+
+        if (drainTo(lane, batch, maxElements) > 0) {
+            return batch;
+        }
+
+        synchronized (notEmpty) {
+            takeWaiters.incrementAndGet();
+            try {
+                while (drainTo(lane, batch, maxElements) == 0) {
+                    notEmpty.wait();
+                }
+
+                return batch;
+            } finally {
+                takeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void waitForRemove() throws InterruptedException {
+        synchronized (removed) {
+            removeWaiters.incrementAndGet();
+            try {
+                long start = removals.get();
+                while (removals.get() == start) {
+                    removed.wait();
+                }
+            } finally {
+                removeWaiters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return Math.max(size.get(), 0);
+    }
+}
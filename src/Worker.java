@@ -1,37 +1,136 @@
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Lander Brandt on 2/18/16.
  */
 public class Worker extends Thread {
     private final int index;
+    private final String logSource;
+    // most jobs taken off the queue at once
+    private final int batchSize;
     private boolean killed = false;
+    // true while the worker holds no job, so interrupting it can't lose one
+    private boolean waiting = false;
     private SharedQueue<Job> jobQueue;
+    // asked whether this worker may exit after idling; null to never time out
+    private final ThreadPool pool;
+    private final int idleTimeout;
+    private final CompletableFuture<Void> exited = new CompletableFuture<>();
 
     Worker(int index, SharedQueue<Job> queue) {
+        this(index, queue, 1);
+    }
+
+    Worker(int index, SharedQueue<Job> queue, int batchSize) {
+        this(index, queue, batchSize, null, 0);
+    }
+
+    /**
+     * @param pool asked whether the worker may exit once it has gone
+     *             {idleTimeout} milliseconds without a job
+     * @param idleTimeout 0 to wait for jobs forever
+     */
+    Worker(int index, SharedQueue<Job> queue, int batchSize, ThreadPool pool, int idleTimeout) {
         this.index = index;
+        this.logSource = "Worker " + index;
+        this.batchSize = batchSize;
+        this.pool = pool;
+        this.idleTimeout = pool == null ? 0 : idleTimeout;
         jobQueue = queue;
     }
 
     @Override
     public void run() {
-        log("Starting");
-        while (!isKilled()) {
-            try {
-                log("Taking job off queue");
-                Thread.sleep((int)(Math.random() * 1000));
-                Job job = jobQueue.take();
-
-                log("Running job");
-                job.run();
-                log("Job finished");
-            } catch (InterruptedException ignored) {
+        Log.info(logSource, "Starting");
+        jobQueue.registerConsumer(index);
+
+        try {
+            while (!isKilled()) {
+                try {
+                    if (batchSize > 1) {
+                        runBatch();
+                        continue;
+                    }
 
+                    log("Taking job off queue");
+                    setWaiting(true);
+                    Thread.sleep((int)(Math.random() * 1000));
+                    Job job = takeJob();
+                    setWaiting(false);
+
+                    if (job == null || !job.markDequeued()) {
+                        continue;
+                    }
+
+                    log("Running job");
+                    job.run();
+                    log("Job finished");
+                } catch (InterruptedException ignored) {
+
+                }
             }
+        } finally {
+            jobQueue.unregisterConsumer(index);
+            Log.info(logSource, "Done!");
+            exited.complete(null);
         }
+    }
 
-        log("Done!");
+    /**
+     * Takes the next job, or returns null if the idle timeout passed without
+     * one and the pool let this worker retire
+     */
+    private Job takeJob() throws InterruptedException {
+        if (idleTimeout == 0) {
+            return jobQueue.take(index);
+        }
+
+        Job job = jobQueue.poll(index, idleTimeout, TimeUnit.MILLISECONDS);
+        if (job == null && pool.retireIdleWorker(this)) {
+            log("Idle for " + idleTimeout + "ms -- retiring");
+        }
+
+        return job;
+    }
+
+    /**
+     * Takes up to batchSize jobs in one go and runs them back to back
+     */
+    private void runBatch() throws InterruptedException {
+        Log.debug(logSource, "Taking jobs off queue, batch size ", batchSize);
+        setWaiting(true);
+        Thread.sleep((int)(Math.random() * 1000));
+
+        List<Job> jobs;
+        if (idleTimeout == 0) {
+            jobs = jobQueue.takeBatch(index, batchSize);
+        } else {
+            Job first = takeJob();
+            jobs = new ArrayList<>(batchSize);
+
+            if (first != null) {
+                jobs.add(first);
+                jobQueue.drainTo(index, jobs, batchSize - 1);
+            }
+        }
+        setWaiting(false);
+
+        // expired and cancelled jobs are dropped here rather than run
+        jobs.removeIf(job -> !job.markDequeued());
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            log(String.format("Running batch of %d jobs (batch size %d)", jobs.size(), batchSize));
+        }
+        for (Job job : jobs) {
+            job.run();
+        }
+        log("Batch finished");
     }
 
     public synchronized void kill() {
@@ -42,10 +141,45 @@ public class Worker extends Thread {
         return killed;
     }
 
+    /**
+     * Kills the worker and, if it is between jobs, interrupts it so it exits
+     * now rather than after its next job. A worker in the middle of a job
+     * finishes it first.
+     */
+    public synchronized void retire() {
+        killed = true;
 
-    private void log(String message) {
-        SimpleDateFormat dt = new SimpleDateFormat("hh:mm:ss yyyy-mm-dd");
+        if (waiting) {
+            interrupt();
+        }
+    }
+
+    private synchronized void setWaiting(boolean waiting) {
+        this.waiting = waiting;
 
-        System.out.printf("[Worker %d] %s at %s\n", index, message, dt.format(new Date()));
+        if (!waiting) {
+            // retire() may have interrupted us just after the job was taken;
+            // the job still runs, so don't let the interrupt leak into it
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Whether the worker is between jobs
+     */
+    public synchronized boolean isWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Completes once the worker's thread has finished
+     */
+    public CompletableFuture<Void> exited() {
+        return exited;
+    }
+
+
+    private void log(String message) {
+        Log.debug(logSource, message);
     }
 }